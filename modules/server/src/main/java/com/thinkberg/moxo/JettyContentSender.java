@@ -0,0 +1,47 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.moxo;
+
+import com.thinkberg.webdav.ContentSender;
+import org.mortbay.io.nio.DirectNIOBuffer;
+import org.mortbay.jetty.HttpConnection;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends local files the way the Jetty DefaultServlet does. The file is mapped into
+ * memory and handed to the connection as a direct buffer, so a channel connector
+ * writes it to the socket from the page cache without copying it through the heap.
+ * The mapping stays valid after the file has been closed or evicted from the cache.
+ *
+ * @author Matthias L. Jugel
+ */
+public class JettyContentSender implements ContentSender {
+  public boolean send(HttpServletResponse response, FileChannel channel, long length) throws IOException {
+    ServletOutputStream os = response.getOutputStream();
+    if (!(os instanceof HttpConnection.Output) || length <= 0 || length > Integer.MAX_VALUE) {
+      return false;
+    }
+    MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+    ((HttpConnection.Output) os).sendContent(new DirectNIOBuffer(content, true));
+    return true;
+  }
+}
@@ -17,14 +17,16 @@
 package com.thinkberg.vfs.s3;
 
 import com.thinkberg.vfs.s3.jets3t.Jets3tFileSystem;
+import com.thinkberg.vfs.s3.jets3t.MeteredRestS3Service;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.vfs.*;
 import org.apache.commons.vfs.provider.AbstractOriginatingFileProvider;
 import org.apache.commons.vfs.util.UserAuthenticatorUtils;
+import org.jets3t.service.Constants;
+import org.jets3t.service.Jets3tProperties;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
-import org.jets3t.service.impl.rest.httpclient.RestS3Service;
 import org.jets3t.service.security.AWSCredentials;
 
 import java.util.Arrays;
@@ -44,14 +46,12 @@ public class S3FileProvider extends AbstractOriginatingFileProvider {
           Capability.RENAME,
           Capability.GET_TYPE,
           Capability.GET_LAST_MODIFIED,
-          Capability.SET_LAST_MODIFIED_FILE,
-          Capability.SET_LAST_MODIFIED_FOLDER,
           Capability.LIST_CHILDREN,
           Capability.READ_CONTENT,
           Capability.URI,
           Capability.WRITE_CONTENT,
-          Capability.APPEND_CONTENT/*,
-          Capability.RANDOM_ACCESS_READ,
+          Capability.APPEND_CONTENT,
+          Capability.RANDOM_ACCESS_READ/*,
           Capability.RANDOM_ACCESS_WRITE*/
 
   ));
@@ -86,7 +86,11 @@ public class S3FileProvider extends AbstractOriginatingFileProvider {
       String secretKey = UserAuthenticatorUtils.toString(UserAuthenticatorUtils.getData(authenticationInfo, UserAuthenticationData.PASSWORD, null));
 
       try {
-        service = new RestS3Service(new AWSCredentials(accessKey, secretKey));
+        S3FileSystemConfigBuilder config = S3FileSystemConfigBuilder.getInstance();
+        service = new MeteredRestS3Service(new AWSCredentials(accessKey, secretKey),
+                                           getProperties(fileSystemOptions),
+                                           config.getMaxConnections(fileSystemOptions),
+                                           config.getRequestQueueTimeout(fileSystemOptions));
       } catch (S3ServiceException e) {
         throw new FileSystemException("Amazon S3 service initialization failed", e);
       } finally {
@@ -97,6 +101,40 @@ public class S3FileProvider extends AbstractOriginatingFileProvider {
     return new Jets3tFileSystem(service, (S3FileName) fileName, fileSystemOptions);
   }
 
+  /**
+   * Create the jets3t configuration for the S3 service. The settings from a jets3t
+   * properties file are used, unless they are overridden by file system options.
+   *
+   * @param fileSystemOptions the file system options
+   * @return the jets3t configuration
+   */
+  private Jets3tProperties getProperties(FileSystemOptions fileSystemOptions) {
+    S3FileSystemConfigBuilder config = S3FileSystemConfigBuilder.getInstance();
+    Jets3tProperties properties = new Jets3tProperties();
+    properties.loadAndReplaceProperties(Jets3tProperties.getInstance(Constants.JETS3T_PROPERTIES_FILENAME),
+                                        Constants.JETS3T_PROPERTIES_FILENAME);
+
+    int maxConnections = config.getMaxConnections(fileSystemOptions);
+    properties.setProperty("httpclient.max-connections", String.valueOf(maxConnections));
+    properties.setProperty("httpclient.connection-timeout-ms",
+                           String.valueOf(config.getConnectionTimeout(fileSystemOptions)));
+    properties.setProperty("httpclient.socket-timeout-ms", String.valueOf(config.getSocketTimeout(fileSystemOptions)));
+    properties.setProperty("httpclient.retry-max", String.valueOf(config.getRequestRetries(fileSystemOptions)));
+    properties.setProperty("s3service.https-only", String.valueOf(config.isHttpsOnly(fileSystemOptions)));
+
+    LOG.info(String.format("S3 service uses %d connections", maxConnections));
+    return properties;
+  }
+
+  /**
+   * Get the configuration builder for S3 file system options.
+   *
+   * @return the S3 file system config builder
+   */
+  public FileSystemConfigBuilder getConfigBuilder() {
+    return S3FileSystemConfigBuilder.getInstance();
+  }
+
   /**
    * Get the capabilities of the file system provider.
    *
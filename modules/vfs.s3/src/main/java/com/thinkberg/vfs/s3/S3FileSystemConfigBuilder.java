@@ -0,0 +1,552 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3;
+
+import org.apache.commons.vfs.FileSystemConfigBuilder;
+import org.apache.commons.vfs.FileSystemOptions;
+
+import java.io.File;
+
+/**
+ * Configuration options for the S3 file system. All options have sensible defaults,
+ * so a file system can be created without any of them being set.
+ *
+ * @author Matthias L. Jugel
+ */
+public class S3FileSystemConfigBuilder extends FileSystemConfigBuilder {
+  private static final S3FileSystemConfigBuilder instance = new S3FileSystemConfigBuilder();
+
+  private static final String CACHE_DIRECTORY = "cacheDirectory";
+  private static final String CACHE_SIZE = "cacheSize";
+  private static final String BLOCK_SIZE = "blockSize";
+  private static final String BLOCK_CACHE_SIZE = "blockCacheSize";
+  private static final String SLAB_CACHE_SIZE = "slabCacheSize";
+  private static final String SLAB_ENTRY_SIZE = "slabEntrySize";
+  private static final String METADATA_CACHE_TTL = "metadataCacheTtl";
+  private static final String METADATA_CACHE_SIZE = "metadataCacheSize";
+  private static final String NEGATIVE_CACHE_TTL = "negativeCacheTtl";
+  private static final String NEGATIVE_CACHE_SIZE = "negativeCacheSize";
+  private static final String BATCH_WORKERS = "batchWorkers";
+  private static final String BATCH_RETRIES = "batchRetries";
+  private static final String LIST_PAGE_SIZE = "listPageSize";
+  private static final String MAX_CONNECTIONS = "maxConnections";
+  private static final String CONNECTION_TIMEOUT = "connectionTimeout";
+  private static final String SOCKET_TIMEOUT = "socketTimeout";
+  private static final String REQUEST_RETRIES = "requestRetries";
+  private static final String REQUEST_QUEUE_TIMEOUT = "requestQueueTimeout";
+  private static final String OPERATION_RETRIES = "operationRetries";
+  private static final String HEDGING = "hedging";
+  private static final String HTTPS_ONLY = "httpsOnly";
+  private static final String WRITE_BEHIND = "writeBehind";
+  private static final String WRITE_BEHIND_WORKERS = "writeBehindWorkers";
+  private static final String UPLOAD_CHUNK_SIZE = "uploadChunkSize";
+  private static final String UPLOAD_QUEUE_LENGTH = "uploadQueueLength";
+  private static final String SCAN_INTERVAL = "scanInterval";
+  private static final String SCAN_PREFIXES = "scanPrefixes";
+  private static final String SCAN_RATE = "scanRate";
+
+  private static final long DEFAULT_CACHE_SIZE = 512L * 1024 * 1024;
+  private static final long DEFAULT_BLOCK_SIZE = 4L * 1024 * 1024;
+  private static final long DEFAULT_BLOCK_CACHE_SIZE = 256L * 1024 * 1024;
+  private static final long DEFAULT_SLAB_CACHE_SIZE = 32L * 1024 * 1024;
+  private static final int DEFAULT_SLAB_ENTRY_SIZE = 64 * 1024;
+  private static final long DEFAULT_METADATA_CACHE_TTL = 30 * 1000;
+  private static final int DEFAULT_METADATA_CACHE_SIZE = 10000;
+  private static final long DEFAULT_NEGATIVE_CACHE_TTL = 5 * 1000;
+  private static final int DEFAULT_NEGATIVE_CACHE_SIZE = 1000;
+  private static final int DEFAULT_BATCH_WORKERS = 16;
+  private static final int DEFAULT_BATCH_RETRIES = 3;
+  private static final int DEFAULT_LIST_PAGE_SIZE = 1000;
+  private static final int DEFAULT_MAX_CONNECTIONS = 20;
+  private static final int DEFAULT_CONNECTION_TIMEOUT = 60 * 1000;
+  private static final int DEFAULT_SOCKET_TIMEOUT = 60 * 1000;
+  private static final int DEFAULT_REQUEST_RETRIES = 5;
+  private static final int DEFAULT_REQUEST_QUEUE_TIMEOUT = 30 * 1000;
+  private static final int DEFAULT_OPERATION_RETRIES = 3;
+  private static final int DEFAULT_WRITE_BEHIND_WORKERS = 4;
+  private static final int DEFAULT_UPLOAD_CHUNK_SIZE = 64 * 1024;
+  private static final int DEFAULT_UPLOAD_QUEUE_LENGTH = 16;
+  private static final long DEFAULT_SCAN_INTERVAL = 0;
+  private static final int DEFAULT_SCAN_RATE = 1000;
+
+  public static S3FileSystemConfigBuilder getInstance() {
+    return instance;
+  }
+
+  private S3FileSystemConfigBuilder() {
+
+  }
+
+  /**
+   * Set the directory used to cache the content of S3 objects. The directory is shared
+   * by all objects of a file system and survives restarts.
+   *
+   * @param opts      the file system options
+   * @param directory the cache directory
+   */
+  public void setCacheDirectory(FileSystemOptions opts, File directory) {
+    setParam(opts, CACHE_DIRECTORY, directory);
+  }
+
+  /**
+   * Get the content cache directory. If not set, a directory named after the bucket
+   * is created in the temporary directory of the JVM.
+   *
+   * @param opts     the file system options
+   * @param bucketId the bucket of the file system
+   * @return the content cache directory
+   */
+  public File getCacheDirectory(FileSystemOptions opts, String bucketId) {
+    File directory = (File) getOption(opts, CACHE_DIRECTORY);
+    if (null == directory) {
+      directory = new File(System.getProperty("java.io.tmpdir"), "moxo-" + bucketId);
+    }
+    return directory;
+  }
+
+  /**
+   * Set the maximum number of bytes the content cache may use on disk.
+   *
+   * @param opts the file system options
+   * @param size the cache size in bytes
+   */
+  public void setCacheSize(FileSystemOptions opts, Long size) {
+    setParam(opts, CACHE_SIZE, size);
+  }
+
+  public long getCacheSize(FileSystemOptions opts) {
+    return getLong(opts, CACHE_SIZE, DEFAULT_CACHE_SIZE);
+  }
+
+  /**
+   * Set the size of the blocks used to cache parts of objects read with random access.
+   * Each missing block is fetched with a single ranged GET request.
+   *
+   * @param opts the file system options
+   * @param size the block size in bytes
+   */
+  public void setBlockSize(FileSystemOptions opts, Long size) {
+    setParam(opts, BLOCK_SIZE, size);
+  }
+
+  public long getBlockSize(FileSystemOptions opts) {
+    return getLong(opts, BLOCK_SIZE, DEFAULT_BLOCK_SIZE);
+  }
+
+  /**
+   * Set the maximum number of bytes the block cache may use on disk. The block cache
+   * lives in the blocks sub directory of the content cache directory.
+   *
+   * @param opts the file system options
+   * @param size the cache size in bytes
+   */
+  public void setBlockCacheSize(FileSystemOptions opts, Long size) {
+    setParam(opts, BLOCK_CACHE_SIZE, size);
+  }
+
+  public long getBlockCacheSize(FileSystemOptions opts) {
+    return getLong(opts, BLOCK_CACHE_SIZE, DEFAULT_BLOCK_CACHE_SIZE);
+  }
+
+  /**
+   * Set the number of bytes of memory outside of the Java heap used to cache the content
+   * of small objects. A size of 0 keeps all content on disk.
+   *
+   * @param opts the file system options
+   * @param size the cache size in bytes
+   */
+  public void setSlabCacheSize(FileSystemOptions opts, Long size) {
+    setParam(opts, SLAB_CACHE_SIZE, size);
+  }
+
+  public long getSlabCacheSize(FileSystemOptions opts) {
+    return getLong(opts, SLAB_CACHE_SIZE, DEFAULT_SLAB_CACHE_SIZE);
+  }
+
+  /**
+   * Set the size up to which the content of an object is kept in memory instead of the
+   * content cache on disk. Small objects are also written from memory.
+   *
+   * @param opts the file system options
+   * @param size the maximum content length in bytes
+   */
+  public void setSlabEntrySize(FileSystemOptions opts, Integer size) {
+    setParam(opts, SLAB_ENTRY_SIZE, size);
+  }
+
+  public int getSlabEntrySize(FileSystemOptions opts) {
+    return (int) getLong(opts, SLAB_ENTRY_SIZE, DEFAULT_SLAB_ENTRY_SIZE);
+  }
+
+  /**
+   * Set the time in milliseconds object metadata is cached. Changes made through this
+   * file system are seen immediately, changes made by others only after the metadata
+   * expired. A time to live of 0 disables the metadata cache.
+   *
+   * @param opts       the file system options
+   * @param timeToLive the time to live in milliseconds
+   */
+  public void setMetadataCacheTtl(FileSystemOptions opts, Long timeToLive) {
+    setParam(opts, METADATA_CACHE_TTL, timeToLive);
+  }
+
+  public long getMetadataCacheTtl(FileSystemOptions opts) {
+    return getLong(opts, METADATA_CACHE_TTL, DEFAULT_METADATA_CACHE_TTL);
+  }
+
+  /**
+   * Set the maximum number of objects whose metadata is cached.
+   *
+   * @param opts the file system options
+   * @param size the number of cache entries
+   */
+  public void setMetadataCacheSize(FileSystemOptions opts, Integer size) {
+    setParam(opts, METADATA_CACHE_SIZE, size);
+  }
+
+  public int getMetadataCacheSize(FileSystemOptions opts) {
+    return (int) getLong(opts, METADATA_CACHE_SIZE, DEFAULT_METADATA_CACHE_SIZE);
+  }
+
+  /**
+   * Set the time in milliseconds a key is remembered as not existing. Clients probe
+   * for files like .DS_Store or desktop.ini over and over, so even a short time saves
+   * a lot of requests. A time to live of 0 disables the negative cache.
+   *
+   * @param opts       the file system options
+   * @param timeToLive the time to live in milliseconds
+   */
+  public void setNegativeCacheTtl(FileSystemOptions opts, Long timeToLive) {
+    setParam(opts, NEGATIVE_CACHE_TTL, timeToLive);
+  }
+
+  public long getNegativeCacheTtl(FileSystemOptions opts) {
+    return getLong(opts, NEGATIVE_CACHE_TTL, DEFAULT_NEGATIVE_CACHE_TTL);
+  }
+
+  /**
+   * Set the maximum number of keys remembered as not existing.
+   *
+   * @param opts the file system options
+   * @param size the number of cache entries
+   */
+  public void setNegativeCacheSize(FileSystemOptions opts, Integer size) {
+    setParam(opts, NEGATIVE_CACHE_SIZE, size);
+  }
+
+  public int getNegativeCacheSize(FileSystemOptions opts) {
+    return (int) getLong(opts, NEGATIVE_CACHE_SIZE, DEFAULT_NEGATIVE_CACHE_SIZE);
+  }
+
+  /**
+   * Set the number of S3 requests sent in parallel when a folder is moved, copied or
+   * deleted with all its children.
+   *
+   * @param opts    the file system options
+   * @param workers the number of parallel requests
+   */
+  public void setBatchWorkers(FileSystemOptions opts, Integer workers) {
+    setParam(opts, BATCH_WORKERS, workers);
+  }
+
+  public int getBatchWorkers(FileSystemOptions opts) {
+    return (int) getLong(opts, BATCH_WORKERS, DEFAULT_BATCH_WORKERS);
+  }
+
+  /**
+   * Set how often a failed request for a single child is retried when a folder is moved,
+   * copied or deleted with all its children.
+   *
+   * @param opts    the file system options
+   * @param retries the number of retries
+   */
+  public void setBatchRetries(FileSystemOptions opts, Integer retries) {
+    setParam(opts, BATCH_RETRIES, retries);
+  }
+
+  public int getBatchRetries(FileSystemOptions opts) {
+    return (int) getLong(opts, BATCH_RETRIES, DEFAULT_BATCH_RETRIES);
+  }
+
+  /**
+   * Set the number of keys requested with each listing request. Only one page of keys
+   * is held in memory while a folder is listed, S3 returns at most 1000 keys per page.
+   *
+   * @param opts     the file system options
+   * @param pageSize the number of keys per page
+   */
+  public void setListPageSize(FileSystemOptions opts, Integer pageSize) {
+    setParam(opts, LIST_PAGE_SIZE, pageSize);
+  }
+
+  public int getListPageSize(FileSystemOptions opts) {
+    return (int) getLong(opts, LIST_PAGE_SIZE, DEFAULT_LIST_PAGE_SIZE);
+  }
+
+  /**
+   * Set the size of the HTTP connection pool. Every request handled at the same time
+   * needs its own connection, so the pool should be about as large as the number of
+   * threads serving requests.
+   *
+   * @param opts           the file system options
+   * @param maxConnections the maximum number of open connections
+   */
+  public void setMaxConnections(FileSystemOptions opts, Integer maxConnections) {
+    setParam(opts, MAX_CONNECTIONS, maxConnections);
+  }
+
+  public int getMaxConnections(FileSystemOptions opts) {
+    return (int) getLong(opts, MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS);
+  }
+
+  /**
+   * Set the time to wait for a connection to S3 to be established.
+   *
+   * @param opts    the file system options
+   * @param timeout the timeout in milliseconds
+   */
+  public void setConnectionTimeout(FileSystemOptions opts, Integer timeout) {
+    setParam(opts, CONNECTION_TIMEOUT, timeout);
+  }
+
+  public int getConnectionTimeout(FileSystemOptions opts) {
+    return (int) getLong(opts, CONNECTION_TIMEOUT, DEFAULT_CONNECTION_TIMEOUT);
+  }
+
+  /**
+   * Set the time to wait for data from an established connection.
+   *
+   * @param opts    the file system options
+   * @param timeout the timeout in milliseconds
+   */
+  public void setSocketTimeout(FileSystemOptions opts, Integer timeout) {
+    setParam(opts, SOCKET_TIMEOUT, timeout);
+  }
+
+  public int getSocketTimeout(FileSystemOptions opts) {
+    return (int) getLong(opts, SOCKET_TIMEOUT, DEFAULT_SOCKET_TIMEOUT);
+  }
+
+  /**
+   * Set how often the HTTP client retries a request that failed on the network level.
+   *
+   * @param opts    the file system options
+   * @param retries the number of retries
+   */
+  public void setRequestRetries(FileSystemOptions opts, Integer retries) {
+    setParam(opts, REQUEST_RETRIES, retries);
+  }
+
+  public int getRequestRetries(FileSystemOptions opts) {
+    return (int) getLong(opts, REQUEST_RETRIES, DEFAULT_REQUEST_RETRIES);
+  }
+
+  /**
+   * Set how long a request waits to be sent while S3 is throttling. The number of
+   * concurrent requests adapts to the load S3 accepts, up to the maximum number of
+   * connections; requests above the current limit wait in line.
+   *
+   * @param opts    the file system options
+   * @param timeout the timeout in milliseconds
+   */
+  public void setRequestQueueTimeout(FileSystemOptions opts, Integer timeout) {
+    setParam(opts, REQUEST_QUEUE_TIMEOUT, timeout);
+  }
+
+  public long getRequestQueueTimeout(FileSystemOptions opts) {
+    return getLong(opts, REQUEST_QUEUE_TIMEOUT, DEFAULT_REQUEST_QUEUE_TIMEOUT);
+  }
+
+  /**
+   * Set how often reading operations (HEAD, GET, LIST) are retried after S3 answered
+   * with a server error or did not answer in time. The retries wait a random time that
+   * grows with each attempt.
+   *
+   * @param opts    the file system options
+   * @param retries the number of retries
+   */
+  public void setOperationRetries(FileSystemOptions opts, Integer retries) {
+    setParam(opts, OPERATION_RETRIES, retries);
+  }
+
+  public int getOperationRetries(FileSystemOptions opts) {
+    return (int) getLong(opts, OPERATION_RETRIES, DEFAULT_OPERATION_RETRIES);
+  }
+
+  /**
+   * Set whether metadata requests and GETs of small objects are hedged. A second
+   * request is sent if the first one takes longer than 95% of the recent ones and the
+   * first response is used. This costs a few more requests to cut the slowest ones short.
+   *
+   * @param opts    the file system options
+   * @param hedging true to send hedged requests
+   */
+  public void setHedging(FileSystemOptions opts, Boolean hedging) {
+    setParam(opts, HEDGING, hedging);
+  }
+
+  public boolean isHedging(FileSystemOptions opts) {
+    Boolean hedging = (Boolean) getOption(opts, HEDGING);
+    return null != hedging && hedging;
+  }
+
+  /**
+   * Set whether requests are sent using HTTPS only. Plain HTTP saves the encryption
+   * where the network to S3 is trusted.
+   *
+   * @param opts      the file system options
+   * @param httpsOnly false to use plain HTTP
+   */
+  public void setHttpsOnly(FileSystemOptions opts, Boolean httpsOnly) {
+    setParam(opts, HTTPS_ONLY, httpsOnly);
+  }
+
+  public boolean isHttpsOnly(FileSystemOptions opts) {
+    Boolean httpsOnly = (Boolean) getOption(opts, HTTPS_ONLY);
+    return null == httpsOnly || httpsOnly;
+  }
+
+  /**
+   * Set whether written content is uploaded in the background. Writing then finishes
+   * as soon as the content is safely stored in the local journal, which lives in the
+   * journal sub directory of the content cache directory.
+   *
+   * @param opts        the file system options
+   * @param writeBehind true to upload in the background
+   */
+  public void setWriteBehind(FileSystemOptions opts, Boolean writeBehind) {
+    setParam(opts, WRITE_BEHIND, writeBehind);
+  }
+
+  public boolean isWriteBehind(FileSystemOptions opts) {
+    Boolean writeBehind = (Boolean) getOption(opts, WRITE_BEHIND);
+    return null != writeBehind && writeBehind;
+  }
+
+  /**
+   * Set the number of background uploads running at the same time.
+   *
+   * @param opts    the file system options
+   * @param workers the number of parallel uploads
+   */
+  public void setWriteBehindWorkers(FileSystemOptions opts, Integer workers) {
+    setParam(opts, WRITE_BEHIND_WORKERS, workers);
+  }
+
+  public int getWriteBehindWorkers(FileSystemOptions opts) {
+    return (int) getLong(opts, WRITE_BEHIND_WORKERS, DEFAULT_WRITE_BEHIND_WORKERS);
+  }
+
+  /**
+   * Set the size of the chunks content is handed to a streaming upload in. Content
+   * with a known length is sent to S3 while it is written.
+   *
+   * @param opts      the file system options
+   * @param chunkSize the chunk size in bytes
+   */
+  public void setUploadChunkSize(FileSystemOptions opts, Integer chunkSize) {
+    setParam(opts, UPLOAD_CHUNK_SIZE, chunkSize);
+  }
+
+  public int getUploadChunkSize(FileSystemOptions opts) {
+    return (int) getLong(opts, UPLOAD_CHUNK_SIZE, DEFAULT_UPLOAD_CHUNK_SIZE);
+  }
+
+  /**
+   * Set the number of chunks a streaming upload buffers while S3 is receiving. A
+   * writer only waits once that many chunks are on their way, the memory used by each
+   * upload is about the chunk size times the queue length.
+   *
+   * @param opts        the file system options
+   * @param queueLength the number of chunks
+   */
+  public void setUploadQueueLength(FileSystemOptions opts, Integer queueLength) {
+    setParam(opts, UPLOAD_QUEUE_LENGTH, queueLength);
+  }
+
+  public int getUploadQueueLength(FileSystemOptions opts) {
+    return (int) getLong(opts, UPLOAD_QUEUE_LENGTH, DEFAULT_UPLOAD_QUEUE_LENGTH);
+  }
+
+  /**
+   * Set the time in milliseconds between two scans of the bucket for changes made by
+   * others. Changed or deleted objects are removed from the caches, which allows long
+   * cache times even if other systems write to the bucket. An interval of 0 disables
+   * scanning.
+   *
+   * @param opts     the file system options
+   * @param interval the pause between the end of a scan and the start of the next
+   */
+  public void setScanInterval(FileSystemOptions opts, Long interval) {
+    setParam(opts, SCAN_INTERVAL, interval);
+  }
+
+  public long getScanInterval(FileSystemOptions opts) {
+    return getLong(opts, SCAN_INTERVAL, DEFAULT_SCAN_INTERVAL);
+  }
+
+  /**
+   * Set the key prefixes the bucket scan covers, separated by commas. By default the
+   * whole bucket is scanned.
+   *
+   * @param opts     the file system options
+   * @param prefixes the key prefixes
+   */
+  public void setScanPrefixes(FileSystemOptions opts, String prefixes) {
+    setParam(opts, SCAN_PREFIXES, prefixes);
+  }
+
+  public String[] getScanPrefixes(FileSystemOptions opts) {
+    String prefixes = (String) getOption(opts, SCAN_PREFIXES);
+    if (null == prefixes || "".equals(prefixes.trim())) {
+      return new String[]{""};
+    }
+    String[] split = prefixes.split(",");
+    for (int i = 0; i < split.length; i++) {
+      split[i] = split[i].trim();
+    }
+    return split;
+  }
+
+  /**
+   * Set the maximum number of objects the bucket scan looks at per second. A rate of 0
+   * scans as fast as the listing arrives.
+   *
+   * @param opts the file system options
+   * @param rate the number of objects per second
+   */
+  public void setScanRate(FileSystemOptions opts, Integer rate) {
+    setParam(opts, SCAN_RATE, rate);
+  }
+
+  public int getScanRate(FileSystemOptions opts) {
+    return (int) getLong(opts, SCAN_RATE, DEFAULT_SCAN_RATE);
+  }
+
+  private Object getOption(FileSystemOptions opts, String name) {
+    return null == opts ? null : getParam(opts, name);
+  }
+
+  private long getLong(FileSystemOptions opts, String name, long defaultValue) {
+    Number value = (Number) getOption(opts, name);
+    return null == value ? defaultValue : value.longValue();
+  }
+
+  protected Class getConfigClass() {
+    return S3FileProvider.class;
+  }
+}
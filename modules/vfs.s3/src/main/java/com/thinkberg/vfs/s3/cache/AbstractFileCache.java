@@ -0,0 +1,276 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.thinkberg.vfs.s3.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The common part of the bounded on-disk caches. Each cached file is an entry, named
+ * after a hash of the S3 key and ETag it belongs to. Entries are kept in access order
+ * and the least recently used ones are evicted once the cache exceeds its size. New
+ * content is written to temporary files in the cache directory first. Subclasses
+ * synchronize on the cache when they work with its entries.
+ *
+ * @author Matthias L. Jugel
+ */
+public abstract class AbstractFileCache<E extends AbstractFileCache.CachedFile> {
+  private static final Log LOG = LogFactory.getLog(AbstractFileCache.class);
+
+  private static final String TEMP_PREFIX = "moxo.";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private final File directory;
+  private final long maxSize;
+
+  // entries in access order, the least recently used entry comes first
+  private final LinkedHashMap<String, E> entries = new LinkedHashMap<String, E>(16, 0.75f, true);
+  private long size = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Create a cache in the given directory.
+   *
+   * @param directory the cache directory, created if it does not exist
+   * @param maxSize   the maximum size of all cache entries in bytes
+   * @throws IOException if the cache directory cannot be created
+   */
+  protected AbstractFileCache(File directory, long maxSize) throws IOException {
+    this.directory = directory;
+    this.maxSize = maxSize;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException(String.format("can't create cache directory '%s'", directory));
+    }
+  }
+
+  /**
+   * Create a temporary file in the cache directory. Content is written to temporary
+   * files first and then moved into the cache.
+   *
+   * @return a new temporary file
+   * @throws IOException if the file cannot be created
+   */
+  public File createTempFile() throws IOException {
+    return File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, directory);
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  public long getMaxSize() {
+    return maxSize;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  protected File getDirectory() {
+    return directory;
+  }
+
+  protected File getFile(String name) {
+    return new File(directory, name);
+  }
+
+  /**
+   * Find the entries left by a previous run. Left over temporary files are removed.
+   *
+   * @param suffix the suffix of entry file names
+   * @return the entry files, in the order of their modification time
+   */
+  protected List<File> scan(String suffix) {
+    File[] files = directory.listFiles();
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        long m1 = f1.lastModified(), m2 = f2.lastModified();
+        return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+      }
+    });
+    List<File> entryFiles = new ArrayList<File>();
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(suffix)) {
+        entryFiles.add(file);
+      } else if (name.startsWith(TEMP_PREFIX) && name.endsWith(TEMP_SUFFIX)) {
+        file.delete();
+      }
+    }
+    return entryFiles;
+  }
+
+  /**
+   * Look up an entry and count a hit or a miss. An entry found becomes the most
+   * recently used one.
+   *
+   * @param name the entry name
+   * @return the entry or null if it is not cached
+   */
+  protected E lookup(String name) {
+    E entry = null == name ? null : entries.get(name);
+    (null == entry ? misses : hits).incrementAndGet();
+    return entry;
+  }
+
+  protected boolean containsEntry(String name) {
+    return entries.containsKey(name);
+  }
+
+  protected int getEntryCount() {
+    return entries.size();
+  }
+
+  /**
+   * Add an entry, replacing an entry of the same name.
+   *
+   * @param name  the entry name
+   * @param entry the entry
+   */
+  protected void addEntry(String name, E entry) {
+    E old = entries.put(name, entry);
+    if (null != old) {
+      size -= old.size;
+    }
+    size += entry.size;
+  }
+
+  /**
+   * Remove an entry and delete its file.
+   *
+   * @param name the entry name
+   */
+  protected void removeEntry(String name) {
+    E entry = entries.remove(name);
+    if (null != entry) {
+      delete(name, entry);
+    }
+  }
+
+  /**
+   * Remove all entries whose names start with the prefix and delete their files.
+   *
+   * @param prefix the name prefix
+   */
+  protected void removeEntries(String prefix) {
+    Iterator<Map.Entry<String, E>> it = entries.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<String, E> entry = it.next();
+      if (entry.getKey().startsWith(prefix)) {
+        it.remove();
+        delete(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Evict the least recently used entries until the cache fits its size again.
+   *
+   * @param keep the name of an entry that must not be evicted, may be null
+   */
+  protected void evict(String keep) {
+    Iterator<Map.Entry<String, E>> it = entries.entrySet().iterator();
+    while (size > maxSize && it.hasNext()) {
+      Map.Entry<String, E> eldest = it.next();
+      if (eldest.getKey().equals(keep)) {
+        continue;
+      }
+      it.remove();
+      delete(eldest.getKey(), eldest.getValue());
+      evictions.incrementAndGet();
+      LOG.debug(String.format("evicted %s (%s) from '%s'", eldest.getValue(), eldest.getKey(), directory));
+    }
+  }
+
+  /**
+   * Called after an entry has been removed from the cache, to update what the subclass
+   * knows about it.
+   *
+   * @param name  the entry name
+   * @param entry the entry
+   */
+  protected void removed(String name, E entry) {
+  }
+
+  /**
+   * Get the name for cached content, a hash of the key and ETag of the object version.
+   *
+   * @param key  the S3 key
+   * @param eTag the ETag of the object version
+   * @return the hash as a hex string
+   */
+  protected static String getName(String key, String eTag) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      byte[] hash = digest.digest((key + "\n" + eTag).getBytes("UTF-8"));
+      StringBuffer name = new StringBuffer(hash.length * 2);
+      for (byte b : hash) {
+        name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+      }
+      return name.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 not available", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 not available", e);
+    }
+  }
+
+  private void delete(String name, E entry) {
+    size -= entry.size;
+    removed(name, entry);
+    // open readers on unix systems keep their content
+    new File(directory, name).delete();
+  }
+
+  /**
+   * A file in the cache.
+   */
+  protected static class CachedFile {
+    final long size;
+
+    protected CachedFile(long size) {
+      this.size = size;
+    }
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A bounded on-disk cache for blocks of S3 objects. Large objects are often read in
+ * scattered ranges only, so instead of the complete content, fixed size blocks of an
+ * object version (key and ETag) are cached. A presence bitmap per version tells which
+ * blocks are available, missing blocks are loaded on demand. Concurrent requests for
+ * the same missing block wait for a single load. Blocks are evicted individually, the
+ * least recently used first.
+ *
+ * @author Matthias L. Jugel
+ */
+public class BlockCache extends AbstractFileCache<BlockCache.Block> {
+  private static final Log LOG = LogFactory.getLog(BlockCache.class);
+
+  private static final String BLOCK_SUFFIX = ".blk";
+
+  /**
+   * Loads a block of an object version from S3.
+   */
+  public interface BlockLoader {
+    /**
+     * Write the content of a block into the given file.
+     *
+     * @param index the block index
+     * @param file  the file to write to
+     * @throws IOException if the block cannot be loaded
+     */
+    void load(long index, File file) throws IOException;
+  }
+
+  private final long blockSize;
+
+  // presence bitmap for each object version
+  private final Map<String, BitSet> present = new HashMap<String, BitSet>();
+  // S3 key to the object version we cached blocks for last
+  private final Map<String, String> versions = new HashMap<String, String>();
+
+  private final ConcurrentMap<String, FutureTask<File>> loads = new ConcurrentHashMap<String, FutureTask<File>>();
+
+  /**
+   * Create a block cache in the given directory. Left over temporary files are removed
+   * and existing blocks are added to the cache in the order of their modification time.
+   *
+   * @param directory the cache directory, created if it does not exist
+   * @param blockSize the size of a block in bytes
+   * @param maxSize   the maximum size of all cached blocks in bytes
+   * @throws IOException if the cache directory cannot be created
+   */
+  public BlockCache(File directory, long blockSize, long maxSize) throws IOException {
+    super(directory, maxSize);
+    this.blockSize = blockSize;
+
+    synchronized (this) {
+      for (File file : scan(BLOCK_SUFFIX)) {
+        try {
+          // <version>.<index>.blk
+          String[] parts = file.getName().split("\\.");
+          String version = parts[0];
+          long index = Long.parseLong(parts[1]);
+          addBlock(file.getName(), new Block(null, version, index, file.length()));
+        } catch (RuntimeException e) {
+          file.delete();
+        }
+      }
+      evict(null);
+    }
+    LOG.debug(String.format("block cache '%s' initialized with %d blocks (%d bytes)",
+                            directory, getEntryCount(), getSize()));
+  }
+
+  public long getBlockSize() {
+    return blockSize;
+  }
+
+  /**
+   * Get a block of an object version, loading it if it is not cached. If the same block
+   * is already being loaded, wait for that load to finish.
+   *
+   * @param key    the S3 key
+   * @param eTag   the ETag of the object version
+   * @param index  the block index
+   * @param loader the loader to use if the block is missing
+   * @return the file holding the block content
+   * @throws IOException if the block cannot be loaded
+   */
+  public File getBlock(final String key, final String eTag, final long index, final BlockLoader loader)
+          throws IOException {
+    final String version = getName(key, eTag);
+    final String name = getBlockName(version, index);
+    synchronized (this) {
+      BitSet bits = present.get(version);
+      boolean known = null != bits && index < Integer.MAX_VALUE && bits.get((int) index);
+      if (null != lookup(known ? name : null)) {
+        return getFile(name);
+      }
+    }
+
+    FutureTask<File> load = new FutureTask<File>(new Callable<File>() {
+      public File call() throws Exception {
+        File tempFile = createTempFile();
+        try {
+          loader.load(index, tempFile);
+          return putBlock(key, version, index, tempFile);
+        } finally {
+          tempFile.delete();
+        }
+      }
+    });
+    FutureTask<File> running = loads.putIfAbsent(name, load);
+    if (null == running) {
+      try {
+        load.run();
+      } finally {
+        loads.remove(name);
+      }
+      running = load;
+    }
+
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      throw new IOException(String.format("interrupted while loading block %d of '%s'", index, key));
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      IOException ioe = new IOException(String.format("can't load block %d of '%s'", index, key));
+      ioe.initCause(e.getCause());
+      throw ioe;
+    }
+  }
+
+  /**
+   * Remove all cached blocks of the version of an S3 object we know of.
+   *
+   * @param key the S3 key
+   */
+  public synchronized void remove(String key) {
+    String version = versions.remove(key);
+    if (null != version) {
+      removeVersion(version);
+    }
+  }
+
+  public synchronized String toString() {
+    return String.format("BlockCache[%s,blocksize=%d,size=%d/%d,blocks=%d,hits=%d,misses=%d,evictions=%d]",
+                         getDirectory(), blockSize, getSize(), getMaxSize(), getEntryCount(), getHitCount(),
+                         getMissCount(), getEvictionCount());
+  }
+
+  private synchronized File putBlock(String key, String version, long index, File tempFile) throws IOException {
+    String name = getBlockName(version, index);
+    File file = getFile(name);
+    if (!tempFile.renameTo(file)) {
+      throw new IOException(String.format("can't move '%s' into block cache", tempFile));
+    }
+
+    String oldVersion = versions.put(key, version);
+    if (null != oldVersion && !oldVersion.equals(version)) {
+      removeVersion(oldVersion);
+    }
+    addBlock(name, new Block(key, version, index, file.length()));
+    evict(name);
+    return file;
+  }
+
+  private void addBlock(String name, Block block) {
+    addEntry(name, block);
+    BitSet bits = present.get(block.version);
+    if (null == bits) {
+      bits = new BitSet();
+      present.put(block.version, bits);
+    }
+    bits.set((int) block.index);
+  }
+
+  private void removeVersion(String version) {
+    removeEntries(version + ".");
+    present.remove(version);
+  }
+
+  protected void removed(String name, Block block) {
+    BitSet bits = present.get(block.version);
+    if (null != bits) {
+      bits.clear((int) block.index);
+      if (bits.isEmpty()) {
+        present.remove(block.version);
+      }
+    }
+  }
+
+  private static String getBlockName(String version, long index) {
+    return version + "." + index + BLOCK_SUFFIX;
+  }
+
+  static class Block extends CachedFile {
+    final String key;
+    final String version;
+    final long index;
+
+    Block(String key, String version, long index, long size) {
+      super(size);
+      this.key = key;
+      this.version = version;
+      this.index = index;
+    }
+
+    public String toString() {
+      return String.format("block %d of '%s'", index, key);
+    }
+  }
+}
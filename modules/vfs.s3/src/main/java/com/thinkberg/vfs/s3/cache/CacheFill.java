@@ -0,0 +1,315 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Copies the content of an S3 object into the content cache while it is being read.
+ * The fill runs in its own thread and writes into a temporary file of the cache.
+ * Any number of readers may follow the fill, each reading from the temporary file
+ * at its own pace and only waiting if it is ahead of the data received so far. A slow
+ * reader therefore never slows down the fill or other readers. Once all content has
+ * arrived the file is added to the cache, unless it is larger than the whole cache.
+ * <p/>
+ * If the connection breaks while the content is received and the fill knows where to
+ * get the rest, it continues from the last byte received. Readers only notice a pause.
+ *
+ * @author Matthias L. Jugel
+ */
+public class CacheFill implements Runnable {
+  private static final Log LOG = LogFactory.getLog(CacheFill.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final int MAX_RESUMES = 3;
+
+  private final ContentCache cache;
+  private final String key;
+  private final String eTag;
+  private final long length;
+  private final RangeSource rangeSource;
+  private final File tempFile;
+
+  private InputStream source;
+  private int resumes = 0;
+
+  private File contentFile;
+  private long filled = 0;
+  private boolean done = false;
+  private IOException failure = null;
+
+  /**
+   * Create a new cache fill. The fill starts when it is run.
+   *
+   * @param cache  the content cache to fill
+   * @param key    the S3 key
+   * @param eTag   the ETag of the object version
+   * @param length the content length
+   * @param source the content as it is received from S3
+   * @throws IOException if the temporary file cannot be created
+   */
+  public CacheFill(ContentCache cache, String key, String eTag, long length, InputStream source) throws IOException {
+    this(cache, key, eTag, length, source, null);
+  }
+
+  /**
+   * Create a new cache fill that resumes if the content stream breaks. The fill starts
+   * when it is run.
+   *
+   * @param cache       the content cache to fill
+   * @param key         the S3 key
+   * @param eTag        the ETag of the object version
+   * @param length      the content length
+   * @param source      the content as it is received from S3
+   * @param rangeSource where to get the rest of the content from, may be null
+   * @throws IOException if the temporary file cannot be created
+   */
+  public CacheFill(ContentCache cache, String key, String eTag, long length, InputStream source,
+                   RangeSource rangeSource) throws IOException {
+    this.cache = cache;
+    this.key = key;
+    this.eTag = eTag;
+    this.length = length;
+    this.source = source;
+    this.rangeSource = rangeSource;
+    this.tempFile = cache.createTempFile();
+    this.contentFile = tempFile;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public String getETag() {
+    return eTag;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Copy the content from S3 into the temporary file and add it to the cache.
+   */
+  public void run() {
+    LOG.debug(String.format("filling cache with '%s' (%d bytes)", key, length));
+    try {
+      FileOutputStream os = new FileOutputStream(tempFile);
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long position = 0;
+        while (position < length) {
+          int count;
+          try {
+            count = source.read(buffer, 0, (int) Math.min(buffer.length, length - position));
+            if (count < 0) {
+              throw new EOFException(String.format("premature end of content of '%s' (%d of %d bytes)",
+                                                   key, position, length));
+            }
+          } catch (IOException e) {
+            resume(position, e);
+            continue;
+          }
+          resumes = 0;
+          os.write(buffer, 0, count);
+          position += count;
+          setFilled(position);
+        }
+      } finally {
+        os.close();
+      }
+      commit();
+    } catch (IOException e) {
+      LOG.error(String.format("can't fill cache with '%s'", key), e);
+      tempFile.delete();
+      finish(e);
+    } catch (RuntimeException e) {
+      // readers waiting for content must not wait forever
+      LOG.error(String.format("can't fill cache with '%s'", key), e);
+      tempFile.delete();
+      IOException failure = new IOException(String.format("unexpected failure filling cache with '%s'", key));
+      failure.initCause(e);
+      finish(failure);
+    } finally {
+      try {
+        source.close();
+      } catch (IOException e) {
+        // ignore, we are done with it
+      }
+    }
+  }
+
+  /**
+   * Continue receiving the content at the position where the stream broke.
+   *
+   * @param position the number of bytes received
+   * @param cause    the reason the stream broke
+   * @throws IOException the cause if the fill cannot be resumed
+   */
+  private void resume(long position, IOException cause) throws IOException {
+    if (null == rangeSource || resumes >= MAX_RESUMES) {
+      throw cause;
+    }
+    resumes++;
+    LOG.info(String.format("resuming '%s' at %d of %d bytes (attempt %d): %s",
+                           key, position, length, resumes, cause.getMessage()));
+    try {
+      source.close();
+    } catch (IOException e) {
+      // the connection is broken anyway
+    }
+    try {
+      source = rangeSource.open(position);
+    } catch (IOException e) {
+      LOG.warn(String.format("can't resume '%s': %s", key, e.getMessage()));
+      throw cause;
+    }
+  }
+
+  /**
+   * Open a stream reading the content from the beginning. The stream blocks if it
+   * reads faster than the content arrives from S3.
+   *
+   * @return the content stream
+   * @throws IOException if the fill has failed
+   */
+  public synchronized InputStream openStream() throws IOException {
+    if (null != failure) {
+      throw failure;
+    }
+    // an open file stays valid when it is moved into the cache
+    return new FillInputStream(new RandomAccessFile(contentFile, "r"));
+  }
+
+  public synchronized boolean isDone() {
+    return done;
+  }
+
+  private synchronized void setFilled(long position) {
+    filled = position;
+    notifyAll();
+  }
+
+  private synchronized void commit() throws IOException {
+    if (length > cache.getMaxSize()) {
+      // keeping content larger than the whole cache would evict everything else,
+      // readers that opened the temporary file can still finish reading it
+      LOG.debug(String.format("'%s' is too large to be cached (%d bytes)", key, length));
+      tempFile.delete();
+    } else {
+      contentFile = cache.put(key, eTag, tempFile);
+    }
+    finish(null);
+  }
+
+  private synchronized void finish(IOException e) {
+    failure = e;
+    done = true;
+    notifyAll();
+  }
+
+  /**
+   * Wait until there is content to read at the given position.
+   *
+   * @param position the read position
+   * @return the number of bytes available to read, 0 if the end of the content is reached
+   * @throws IOException if the fill failed or the thread is interrupted
+   */
+  private synchronized long awaitContent(long position) throws IOException {
+    while (filled <= position && !done) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        throw new IOException(String.format("interrupted while waiting for content of '%s'", key));
+      }
+    }
+    if (null != failure) {
+      IOException e = new IOException(String.format("can't read content of '%s'", key));
+      e.initCause(failure);
+      throw e;
+    }
+    return filled - position;
+  }
+
+  /**
+   * Provides the rest of the content after the stream broke.
+   */
+  public interface RangeSource {
+    /**
+     * Open the content of the same object version from a position to the end.
+     *
+     * @param position the first byte to read
+     * @return the content stream
+     * @throws IOException if the content cannot be read, or the object has changed
+     */
+    InputStream open(long position) throws IOException;
+  }
+
+  private class FillInputStream extends InputStream {
+    private final RandomAccessFile file;
+    private long position = 0;
+
+    FillInputStream(RandomAccessFile file) {
+      this.file = file;
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      long available = awaitContent(position);
+      if (available == 0) {
+        return -1;
+      }
+      int count = file.read(b, off, (int) Math.min(len, available));
+      if (count > 0) {
+        position += count;
+      }
+      return count;
+    }
+
+    public long skip(long n) throws IOException {
+      long skipped = Math.max(0, Math.min(n, length - position));
+      position += skipped;
+      file.seek(position);
+      return skipped;
+    }
+
+    public int available() throws IOException {
+      synchronized (CacheFill.this) {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, filled - position));
+      }
+    }
+
+    public void close() throws IOException {
+      file.close();
+    }
+  }
+}
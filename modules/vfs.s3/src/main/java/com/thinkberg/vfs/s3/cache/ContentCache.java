@@ -0,0 +1,161 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A bounded on-disk cache for the content of S3 objects. Entries are identified by the
+ * S3 key and the ETag of the object, so a changed object never matches an old entry.
+ * The least recently used entries are evicted once the cache exceeds its size. Entry
+ * files are named after a hash of key and ETag, which lets the cache pick up the
+ * entries of a previous run when it is created.
+ *
+ * @author Matthias L. Jugel
+ */
+public class ContentCache extends AbstractFileCache<ContentCache.Entry> {
+  private static final Log LOG = LogFactory.getLog(ContentCache.class);
+
+  private static final String ENTRY_SUFFIX = ".s3c";
+
+  // S3 key to entry name of the version we cached last
+  private final Map<String, String> keys = new HashMap<String, String>();
+
+  /**
+   * Create a content cache in the given directory. Left over temporary files are removed
+   * and existing entries are added to the cache in the order of their modification time.
+   *
+   * @param directory the cache directory, created if it does not exist
+   * @param maxSize   the maximum size of all cache entries in bytes
+   * @throws IOException if the cache directory cannot be created
+   */
+  public ContentCache(File directory, long maxSize) throws IOException {
+    super(directory, maxSize);
+    synchronized (this) {
+      for (File file : scan(ENTRY_SUFFIX)) {
+        addEntry(file.getName(), new Entry(null, file.length()));
+      }
+      evict(null);
+    }
+    LOG.debug(String.format("content cache '%s' initialized with %d entries (%d bytes)",
+                            directory, getEntryCount(), getSize()));
+  }
+
+  /**
+   * Look up the cached content of an S3 object.
+   *
+   * @param key  the S3 key
+   * @param eTag the ETag of the object version
+   * @return the file holding the content or null if it is not cached
+   */
+  public synchronized File get(String key, String eTag) {
+    String name = null == eTag ? null : getEntryName(key, eTag);
+    return null == lookup(name) ? null : getFile(name);
+  }
+
+  /**
+   * Check whether the content of an S3 object is cached, without counting a hit or miss.
+   *
+   * @param key  the S3 key
+   * @param eTag the ETag of the object version
+   * @return true if the content is cached
+   */
+  public synchronized boolean contains(String key, String eTag) {
+    return null != eTag && containsEntry(getEntryName(key, eTag));
+  }
+
+  /**
+   * Add the content of an S3 object to the cache. The temporary file is moved into the
+   * cache and replaces older versions of the same key. Least recently used entries are
+   * evicted until the cache fits its size again, except for the entry just added.
+   *
+   * @param key      the S3 key
+   * @param eTag     the ETag of the object version
+   * @param tempFile a temporary file created by {@link #createTempFile()}
+   * @return the cache file now holding the content
+   * @throws IOException if the file cannot be moved into the cache
+   */
+  public synchronized File put(String key, String eTag, File tempFile) throws IOException {
+    String name = getEntryName(key, eTag);
+    File file = getFile(name);
+    if (containsEntry(name)) {
+      // someone else has been faster
+      tempFile.delete();
+      return file;
+    }
+
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      throw new IOException(String.format("can't move '%s' into content cache", tempFile));
+    }
+
+    String oldName = keys.put(key, name);
+    if (null != oldName && !oldName.equals(name)) {
+      removeEntry(oldName);
+    }
+    addEntry(name, new Entry(key, file.length()));
+    evict(name);
+    return file;
+  }
+
+  /**
+   * Remove all cached versions of an S3 object we know of.
+   *
+   * @param key the S3 key
+   */
+  public synchronized void remove(String key) {
+    String name = keys.remove(key);
+    if (null != name) {
+      removeEntry(name);
+    }
+  }
+
+  public synchronized String toString() {
+    return String.format("ContentCache[%s,size=%d/%d,entries=%d,hits=%d,misses=%d,evictions=%d]",
+                         getDirectory(), getSize(), getMaxSize(), getEntryCount(), getHitCount(), getMissCount(),
+                         getEvictionCount());
+  }
+
+  protected void removed(String name, Entry entry) {
+    if (null != entry.key && name.equals(keys.get(entry.key))) {
+      keys.remove(entry.key);
+    }
+  }
+
+  private static String getEntryName(String key, String eTag) {
+    return getName(key, eTag) + ENTRY_SUFFIX;
+  }
+
+  static class Entry extends CachedFile {
+    final String key;
+
+    Entry(String key, long size) {
+      super(size);
+      this.key = key;
+    }
+
+    public String toString() {
+      return String.format("'%s'", key);
+    }
+  }
+}
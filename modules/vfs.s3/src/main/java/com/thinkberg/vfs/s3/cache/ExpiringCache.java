@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.cache;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size limited in-memory cache whose entries expire after a fixed time to live.
+ * Keys are S3 keys, which allows removing all entries below a common prefix. If the
+ * cache is full the least recently used entry is evicted.
+ *
+ * @author Matthias L. Jugel
+ */
+public class ExpiringCache<V> {
+  private final long timeToLive;
+  private final int maxEntries;
+
+  private final LinkedHashMap<String, Entry<V>> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong expirations = new AtomicLong();
+
+  /**
+   * Create a new cache.
+   *
+   * @param timeToLive the time in milliseconds an entry stays valid, 0 disables the cache
+   * @param maxEntries the maximum number of entries
+   */
+  public ExpiringCache(long timeToLive, final int maxEntries) {
+    this.timeToLive = timeToLive;
+    this.maxEntries = maxEntries;
+    entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry<String, Entry<V>> eldest) {
+        if (size() > maxEntries) {
+          evictions.incrementAndGet();
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Get a cached value.
+   *
+   * @param key the key
+   * @return the value or null if there is no valid entry
+   */
+  public synchronized V get(String key) {
+    Entry<V> entry = entries.get(key);
+    if (null != entry) {
+      if (entry.expires > now()) {
+        hits.incrementAndGet();
+        return entry.value;
+      }
+      entries.remove(key);
+      expirations.incrementAndGet();
+    }
+    misses.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Get a cached value without counting a hit or miss.
+   *
+   * @param key the key
+   * @return the value or null if there is no valid entry
+   */
+  public synchronized V peek(String key) {
+    Entry<V> entry = entries.get(key);
+    return null != entry && entry.expires > now() ? entry.value : null;
+  }
+
+  /**
+   * Add or replace a value. The entry expires after the time to live of this cache.
+   *
+   * @param key   the key
+   * @param value the value
+   */
+  public synchronized void put(String key, V value) {
+    if (timeToLive > 0 && maxEntries > 0) {
+      entries.put(key, new Entry<V>(value, now() + timeToLive));
+    }
+  }
+
+  public synchronized void remove(String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * Remove all entries whose key starts with the given prefix.
+   *
+   * @param prefix the key prefix
+   * @return the number of entries removed
+   */
+  public synchronized int removeByPrefix(String prefix) {
+    int count = 0;
+    Iterator<String> it = entries.keySet().iterator();
+    while (it.hasNext()) {
+      if (it.next().startsWith(prefix)) {
+        it.remove();
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Get the keys of all valid entries starting with the given prefix.
+   *
+   * @param prefix the key prefix
+   * @return the keys
+   */
+  public synchronized Set<String> getKeys(String prefix) {
+    Set<String> keys = new HashSet<String>();
+    long now = now();
+    for (Map.Entry<String, Entry<V>> entry : entries.entrySet()) {
+      if (entry.getKey().startsWith(prefix) && entry.getValue().expires > now) {
+        keys.add(entry.getKey());
+      }
+    }
+    return keys;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getTimeToLive() {
+    return timeToLive;
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public long getExpirationCount() {
+    return expirations.get();
+  }
+
+  protected long now() {
+    return System.currentTimeMillis();
+  }
+
+  public synchronized String toString() {
+    return String.format("ExpiringCache[ttl=%d,entries=%d/%d,hits=%d,misses=%d,evictions=%d,expirations=%d]",
+                         timeToLive, entries.size(), maxEntries, hits.get(), misses.get(), evictions.get(),
+                         expirations.get());
+  }
+
+  private static class Entry<V> {
+    final V value;
+    final long expires;
+
+    Entry(V value, long expires) {
+      this.value = value;
+      this.expires = expires;
+    }
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.cache;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in-memory cache for the content of small S3 objects. Reading a small file
+ * from the disk cache costs more in system calls than copying its bytes, so content up
+ * to a maximum entry size is kept in a slab of memory outside of the Java heap instead.
+ * The slab is allocated with the first entry and divided into pages of equal size, an
+ * entry occupies as many pages as its content needs, wherever they are. Entries are
+ * identified by the S3 key and the ETag of the object, only the latest version of a key
+ * is kept. The least recently used entries are evicted when pages run out. Content is
+ * read straight from the pages, the pages of an entry that is evicted or replaced are
+ * only reused once its last reader has been closed.
+ *
+ * @author Matthias L. Jugel
+ */
+public class SlabCache {
+  private static final Log LOG = LogFactory.getLog(SlabCache.class);
+
+  /**
+   * The size of a slab page in bytes.
+   */
+  public static final int PAGE_SIZE = 512;
+
+  private final int maxEntrySize;
+  private ByteBuffer slab;
+
+  // entries in access order, the least recently used entry comes first
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+  // stack of free page numbers
+  private final int[] freePages;
+  private int freeCount;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * Create a slab cache. The memory for all entries is allocated when the first entry is
+   * added. A maximum size or entry size of 0 disables the cache.
+   *
+   * @param maxSize      the size of the slab in bytes, rounded down to full pages
+   * @param maxEntrySize the size of the largest content kept in bytes
+   */
+  public SlabCache(long maxSize, int maxEntrySize) {
+    int pages = (int) Math.min(Integer.MAX_VALUE / PAGE_SIZE, Math.max(0, maxSize) / PAGE_SIZE);
+    this.maxEntrySize = pages == 0 ? 0 : Math.max(0, Math.min(maxEntrySize, pages * PAGE_SIZE));
+    this.freePages = new int[pages];
+    for (int page = 0; page < pages; page++) {
+      freePages[page] = pages - page - 1;
+    }
+    this.freeCount = pages;
+    LOG.debug(String.format("slab cache initialized with %d pages of %d bytes", pages, PAGE_SIZE));
+  }
+
+  /**
+   * Check whether content of the given length is small enough to be kept.
+   *
+   * @param length the content length
+   * @return true if the content belongs into this cache
+   */
+  public boolean accepts(long length) {
+    return maxEntrySize > 0 && length >= 0 && length <= maxEntrySize;
+  }
+
+  /**
+   * Look up the cached content of an S3 object. The stream reads the content from the
+   * slab and supports mark and reset. It must be closed to release the pages.
+   *
+   * @param key  the S3 key
+   * @param eTag the ETag of the object version
+   * @return a stream reading the content or null if it is not cached
+   */
+  public synchronized InputStream get(String key, String eTag) {
+    Entry entry = entries.get(key);
+    if (null == entry || null == eTag || !eTag.equals(entry.eTag)) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    entry.readers++;
+    return new EntryInputStream(entry);
+  }
+
+  /**
+   * Check whether the content of an S3 object is cached, without counting a hit or miss.
+   *
+   * @param key  the S3 key
+   * @param eTag the ETag of the object version
+   * @return true if the content is cached
+   */
+  public synchronized boolean contains(String key, String eTag) {
+    Entry entry = entries.get(key);
+    return null != entry && null != eTag && eTag.equals(entry.eTag);
+  }
+
+  /**
+   * Add the content of an S3 object to the cache. It replaces older versions of the same
+   * key. Least recently used entries are evicted until the content fits, the content is
+   * not added if the pages of evicted entries are still being read.
+   *
+   * @param key     the S3 key
+   * @param eTag    the ETag of the object version
+   * @param content the content, which must be accepted by this cache
+   * @return true if the content has been added
+   */
+  public synchronized boolean put(String key, String eTag, byte[] content) {
+    if (null == eTag || !accepts(content.length)) {
+      return false;
+    }
+    removeEntry(key);
+    if (null == slab) {
+      slab = ByteBuffer.allocateDirect(freePages.length * PAGE_SIZE);
+      LOG.debug(String.format("slab of %d bytes allocated", slab.capacity()));
+    }
+    int pageCount = (content.length + PAGE_SIZE - 1) / PAGE_SIZE;
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (freeCount < pageCount && it.hasNext()) {
+      Map.Entry<String, Entry> eldest = it.next();
+      it.remove();
+      release(eldest.getValue());
+      evictions.incrementAndGet();
+      LOG.debug(String.format("evicted '%s' from slab cache", eldest.getKey()));
+    }
+    if (freeCount < pageCount) {
+      return false;
+    }
+
+    int[] pages = new int[pageCount];
+    int offset = 0;
+    for (int i = 0; i < pageCount; i++) {
+      pages[i] = freePages[--freeCount];
+      int count = Math.min(PAGE_SIZE, content.length - offset);
+      slab.position(pages[i] * PAGE_SIZE);
+      slab.put(content, offset, count);
+      offset += count;
+    }
+    entries.put(key, new Entry(eTag, content.length, pages));
+    return true;
+  }
+
+  /**
+   * Remove the cached content of an S3 object.
+   *
+   * @param key the S3 key
+   */
+  public synchronized void remove(String key) {
+    removeEntry(key);
+  }
+
+  /**
+   * Get the number of bytes in use, counted in full pages.
+   *
+   * @return the used size in bytes
+   */
+  public synchronized long getSize() {
+    return (long) (freePages.length - freeCount) * PAGE_SIZE;
+  }
+
+  public long getMaxSize() {
+    return (long) freePages.length * PAGE_SIZE;
+  }
+
+  public int getMaxEntrySize() {
+    return maxEntrySize;
+  }
+
+  public long getHitCount() {
+    return hits.get();
+  }
+
+  public long getMissCount() {
+    return misses.get();
+  }
+
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+
+  public synchronized String toString() {
+    return String.format("SlabCache[size=%d/%d,entries=%d,hits=%d,misses=%d,evictions=%d]",
+                         getSize(), getMaxSize(), entries.size(), hits.get(), misses.get(), evictions.get());
+  }
+
+  private void removeEntry(String key) {
+    Entry entry = entries.remove(key);
+    if (null != entry) {
+      release(entry);
+    }
+  }
+
+  private void release(Entry entry) {
+    entry.removed = true;
+    if (entry.readers == 0) {
+      for (int page : entry.pages) {
+        freePages[freeCount++] = page;
+      }
+    }
+  }
+
+  private synchronized void close(Entry entry) {
+    entry.readers--;
+    if (entry.removed) {
+      release(entry);
+    }
+  }
+
+  private synchronized int read(Entry entry, int position, byte[] b, int off, int len) {
+    int count = 0;
+    while (count < len && position < entry.length) {
+      int offset = position % PAGE_SIZE;
+      int chunk = Math.min(Math.min(len - count, PAGE_SIZE - offset), entry.length - position);
+      slab.position(entry.pages[position / PAGE_SIZE] * PAGE_SIZE + offset);
+      slab.get(b, off + count, chunk);
+      position += chunk;
+      count += chunk;
+    }
+    return count;
+  }
+
+  private static class Entry {
+    final String eTag;
+    final int length;
+    final int[] pages;
+    int readers = 0;
+    boolean removed = false;
+
+    Entry(String eTag, int length, int[] pages) {
+      this.eTag = eTag;
+      this.length = length;
+      this.pages = pages;
+    }
+  }
+
+  /**
+   * Reads the content of an entry from its pages.
+   */
+  private class EntryInputStream extends InputStream {
+    private Entry entry;
+    private int position = 0;
+    private int mark = 0;
+
+    EntryInputStream(Entry entry) {
+      this.entry = entry;
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (null == entry) {
+        throw new IOException("stream closed");
+      }
+      if (position >= entry.length) {
+        return -1;
+      }
+      int count = SlabCache.this.read(entry, position, b, off, len);
+      position += count;
+      return count;
+    }
+
+    public long skip(long n) throws IOException {
+      if (null == entry) {
+        throw new IOException("stream closed");
+      }
+      long count = Math.max(0, Math.min(n, entry.length - position));
+      position += count;
+      return count;
+    }
+
+    public int available() throws IOException {
+      return null == entry ? 0 : entry.length - position;
+    }
+
+    public boolean markSupported() {
+      return true;
+    }
+
+    public void mark(int readLimit) {
+      mark = position;
+    }
+
+    public void reset() throws IOException {
+      position = mark;
+    }
+
+    public void close() throws IOException {
+      if (null != entry) {
+        SlabCache.this.close(entry);
+        entry = null;
+      }
+    }
+  }
+}
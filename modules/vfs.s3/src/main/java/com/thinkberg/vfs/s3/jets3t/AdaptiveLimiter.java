@@ -0,0 +1,213 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests running at the same time and adapts the limit to how
+ * well the service copes (additive increase, multiplicative decrease). Each successful
+ * request with a normal latency raises the limit by one over the course of a full
+ * window of requests, a throttled or timed out request cuts it in half. Requests that
+ * started before the last cut do not cut it again, so a burst of throttling responses
+ * only halves the limit once.
+ * <p/>
+ * Callers above the limit wait in line until a request finishes or their deadline
+ * passes.
+ *
+ * @author Matthias L. Jugel
+ */
+public class AdaptiveLimiter {
+  private static final Log LOG = LogFactory.getLog(AdaptiveLimiter.class);
+
+  private static final double BACKOFF_RATIO = 0.5;
+  private static final double LATENCY_TOLERANCE = 2.0;
+  private static final double LATENCY_SMOOTHING = 0.05;
+
+  private final int minLimit;
+  private final int maxLimit;
+
+  private final ReentrantLock lock = new ReentrantLock(true);
+  private final Condition available = lock.newCondition();
+
+  private double limit;
+  private int inFlight = 0;
+  private int queued = 0;
+  private double averageLatency = 0;
+  private long lastDecrease = Long.MIN_VALUE;
+
+  private long rejected = 0;
+  private long dropped = 0;
+
+  /**
+   * Create a new limiter.
+   *
+   * @param initialLimit the number of concurrent requests to start with
+   * @param minLimit     the lowest limit, at least 1
+   * @param maxLimit     the highest limit
+   */
+  public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+  }
+
+  /**
+   * Wait until a request may be sent.
+   *
+   * @param timeout the maximum time to wait in milliseconds
+   * @return the permit to report the outcome of the request to or null if the deadline
+   *         passed
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public Permit acquire(long timeout) throws InterruptedException {
+    long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+    lock.lock();
+    try {
+      queued++;
+      try {
+        while (inFlight >= (int) limit) {
+          if (remaining <= 0) {
+            rejected++;
+            return null;
+          }
+          remaining = available.awaitNanos(remaining);
+        }
+      } finally {
+        queued--;
+      }
+      inFlight++;
+      return new Permit(System.nanoTime());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the current limit.
+   *
+   * @return the number of requests that may run at the same time
+   */
+  public int getLimit() {
+    lock.lock();
+    try {
+      return (int) limit;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Get the state of the limiter.
+   *
+   * @return the statistics, named after what they count
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new TreeMap<String, Object>();
+    lock.lock();
+    try {
+      statistics.put("limiter.limit", (int) limit);
+      statistics.put("limiter.inflight", inFlight);
+      statistics.put("limiter.queued", queued);
+      statistics.put("limiter.rejected", rejected);
+      statistics.put("limiter.dropped", dropped);
+      statistics.put("limiter.latency", (long) averageLatency);
+    } finally {
+      lock.unlock();
+    }
+    return statistics;
+  }
+
+  private void release(long started, Outcome outcome) {
+    long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    lock.lock();
+    try {
+      inFlight--;
+      if (Outcome.SUCCESS == outcome) {
+        boolean healthy = averageLatency == 0 || latency <= averageLatency * LATENCY_TOLERANCE;
+        averageLatency = averageLatency == 0 ? latency :
+                         averageLatency + (latency - averageLatency) * LATENCY_SMOOTHING;
+        // only grow if the limit is actually used
+        if (healthy && inFlight + 1 >= (int) limit / 2 && limit < maxLimit) {
+          limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+      } else if (Outcome.DROPPED == outcome) {
+        dropped++;
+        if (started > lastDecrease) {
+          limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+          lastDecrease = System.nanoTime();
+          LOG.info(String.format("S3 is throttling, reduced concurrent requests to %d", (int) limit));
+        }
+      }
+      available.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private enum Outcome {
+    SUCCESS, DROPPED, IGNORED
+  }
+
+  /**
+   * Permission to send one request. The outcome of the request must be reported, only
+   * the first report counts.
+   */
+  public class Permit {
+    private final long started;
+    private boolean released = false;
+
+    private Permit(long started) {
+      this.started = started;
+    }
+
+    /**
+     * The request succeeded.
+     */
+    public void success() {
+      release(Outcome.SUCCESS);
+    }
+
+    /**
+     * The request was throttled or timed out, the service is overloaded.
+     */
+    public void dropped() {
+      release(Outcome.DROPPED);
+    }
+
+    /**
+     * The request failed for another reason, which says nothing about the load.
+     */
+    public void ignored() {
+      release(Outcome.IGNORED);
+    }
+
+    private synchronized void release(Outcome outcome) {
+      if (!released) {
+        released = true;
+        AdaptiveLimiter.this.release(started, outcome);
+      }
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3ServiceException;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the same S3 operation for many items with a bounded number of workers. S3
+ * handles requests for different keys independently, so operations on whole folders
+ * finish in time proportional to the number of items divided by the number of workers.
+ * Failed operations are retried like single S3 calls, with jittered exponential backoff
+ * and only if the failure may go away. Items that still fail are reported, the others
+ * are not affected.
+ *
+ * @author Matthias L. Jugel
+ */
+public abstract class BatchOperation<T> {
+  private static final Log LOG = LogFactory.getLog(BatchOperation.class);
+
+  private final Executor executor;
+  private final int workers;
+  private final int retries;
+
+  /**
+   * Create a new batch operation.
+   *
+   * @param executor the executor running the workers
+   * @param workers  the maximum number of items processed at the same time
+   * @param retries  the number of retries for each failed item
+   */
+  public BatchOperation(Executor executor, int workers, int retries) {
+    this.executor = executor;
+    this.workers = Math.max(1, workers);
+    this.retries = Math.max(0, retries);
+  }
+
+  /**
+   * Execute the operation for a single item. Called concurrently from the workers.
+   *
+   * @param item the item
+   * @throws Exception if the operation failed
+   */
+  protected abstract void execute(T item) throws Exception;
+
+  /**
+   * Decide whether a failed operation is worth another try. Client errors like a
+   * missing key or denied access will not go away when repeated.
+   *
+   * @param e the reason for the failure
+   * @return true if the operation should be retried
+   */
+  protected boolean isRetryable(Exception e) {
+    return !(e instanceof S3ServiceException) || ResilientCaller.isRetryable((S3ServiceException) e);
+  }
+
+  /**
+   * Execute the operation for all items and wait until all of them are done.
+   *
+   * @param items the items
+   * @return the result, containing the items that failed
+   * @throws InterruptedException if the calling thread is interrupted while waiting
+   */
+  public Result<T> run(Collection<T> items) throws InterruptedException {
+    final Queue<T> pending = new ConcurrentLinkedQueue<T>(items);
+    final Map<T, Exception> failures = Collections.synchronizedMap(new LinkedHashMap<T, Exception>());
+    final AtomicInteger succeeded = new AtomicInteger();
+    final AtomicInteger retried = new AtomicInteger();
+
+    int workerCount = Math.min(workers, items.size());
+    final CountDownLatch done = new CountDownLatch(workerCount);
+    for (int i = 0; i < workerCount; i++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            T item;
+            while (null != (item = pending.poll())) {
+              Exception failure = executeWithRetries(item, retried);
+              if (null == failure) {
+                succeeded.incrementAndGet();
+              } else {
+                failures.put(item, failure);
+              }
+            }
+          } finally {
+            done.countDown();
+          }
+        }
+      });
+    }
+
+    try {
+      done.await();
+    } catch (InterruptedException e) {
+      // let the workers finish the item they are working on, but nothing else
+      pending.clear();
+      throw e;
+    }
+    return new Result<T>(succeeded.get(), retried.get(), failures);
+  }
+
+  private Exception executeWithRetries(T item, AtomicInteger retried) {
+    for (int attempt = 0; ; attempt++) {
+      try {
+        execute(item);
+        return null;
+      } catch (Exception e) {
+        if (attempt >= retries || !isRetryable(e)) {
+          LOG.warn(String.format("giving up on '%s' after %d attempts: %s", item, attempt + 1, e.getMessage()));
+          return e;
+        }
+        retried.incrementAndGet();
+        LOG.debug(String.format("retrying '%s' (attempt %d): %s", item, attempt + 2, e.getMessage()));
+        try {
+          Thread.sleep(ResilientCaller.getRetryDelay(attempt));
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          return e;
+        }
+      }
+    }
+  }
+
+  /**
+   * The outcome of a batch operation.
+   */
+  public static class Result<T> {
+    private final int succeeded;
+    private final int retried;
+    private final Map<T, Exception> failures;
+
+    Result(int succeeded, int retried, Map<T, Exception> failures) {
+      this.succeeded = succeeded;
+      this.retried = retried;
+      this.failures = failures;
+    }
+
+    public int getSucceededCount() {
+      return succeeded;
+    }
+
+    public int getRetryCount() {
+      return retried;
+    }
+
+    public boolean hasFailures() {
+      return !failures.isEmpty();
+    }
+
+    /**
+     * Get the items that failed, in the order they failed.
+     *
+     * @return the failed items and the reason for their last failure
+     */
+    public Map<T, Exception> getFailures() {
+      return failures;
+    }
+
+    public String toString() {
+      return String.format("%d succeeded, %d failed, %d retries", succeeded, failures.size(), retried);
+    }
+  }
+}
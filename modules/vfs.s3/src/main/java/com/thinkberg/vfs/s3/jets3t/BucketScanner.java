@@ -0,0 +1,163 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.S3Object;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Looks for changes other systems made to the bucket. Without it, objects written by
+ * others are only noticed once the cached details expire, which forces short cache
+ * times. The scanner lists the configured prefixes at a limited rate, compares size and
+ * ETag of each object with the cached details and invalidates only the objects that
+ * changed or disappeared. Each run scans all prefixes once.
+ *
+ * @author Matthias L. Jugel
+ */
+class BucketScanner implements Runnable {
+  private static final Log LOG = LogFactory.getLog(BucketScanner.class);
+
+  private final Jets3tFileSystem fileSystem;
+  private final S3Service service;
+  private final String bucketName;
+  private final String[] prefixes;
+  private final int rate;
+
+  private final AtomicLong passes = new AtomicLong();
+  private final AtomicLong objects = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  private volatile String currentPrefix = null;
+  private volatile long currentObjects = 0;
+  private volatile long lastPassTime = -1;
+
+  /**
+   * Create a new scanner.
+   *
+   * @param fileSystem the file system whose caches are checked
+   * @param service    the S3 service
+   * @param bucketName the bucket
+   * @param prefixes   the key prefixes to scan, an empty prefix scans the whole bucket
+   * @param rate       the maximum number of objects to look at per second, 0 for no limit
+   */
+  BucketScanner(Jets3tFileSystem fileSystem, S3Service service, String bucketName, String[] prefixes, int rate) {
+    this.fileSystem = fileSystem;
+    this.service = service;
+    this.bucketName = bucketName;
+    this.prefixes = prefixes;
+    this.rate = rate;
+  }
+
+  /**
+   * Scan all prefixes once. Failures are logged, the next run starts over.
+   */
+  public void run() {
+    long start = System.currentTimeMillis();
+    long invalidationsBefore = invalidations.get();
+    try {
+      for (String prefix : prefixes) {
+        scan(prefix);
+      }
+      passes.incrementAndGet();
+      lastPassTime = System.currentTimeMillis() - start;
+      LOG.debug(String.format("scanned bucket '%s' in %dms, %d objects invalidated",
+                              bucketName, lastPassTime, invalidations.get() - invalidationsBefore));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (Exception e) {
+      // an exception would cancel all future runs
+      failures.incrementAndGet();
+      LOG.warn(String.format("can't scan bucket '%s' for changes: %s", bucketName, e.getMessage()));
+    } finally {
+      currentPrefix = null;
+    }
+  }
+
+  /**
+   * Get the progress and results of the scans.
+   *
+   * @return the statistics, named after what they count
+   */
+  Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new TreeMap<String, Object>();
+    statistics.put("scan.passes", passes.get());
+    statistics.put("scan.objects", objects.get());
+    statistics.put("scan.invalidations", invalidations.get());
+    statistics.put("scan.failures", failures.get());
+    statistics.put("scan.lastpass", lastPassTime);
+    String prefix = currentPrefix;
+    statistics.put("scan.prefix", null == prefix ? "" : prefix);
+    statistics.put("scan.progress", null == prefix ? 0 : currentObjects);
+    return statistics;
+  }
+
+  /**
+   * Compare all objects below a prefix with the cached details. Cached objects that are
+   * not listed anymore have been deleted. Only objects cached before the listing started
+   * are checked for that, others may have been created after the listing passed them.
+   *
+   * @param prefix the key prefix
+   * @throws S3ServiceException   if the listing fails
+   * @throws InterruptedException if the scan is stopped
+   */
+  private void scan(String prefix) throws S3ServiceException, InterruptedException {
+    currentPrefix = prefix;
+    currentObjects = 0;
+    Set<String> unseen = fileSystem.getCachedKeys(prefix);
+    long start = System.currentTimeMillis();
+    long count = 0;
+    ObjectListing listing = new ObjectListing(fileSystem, service, bucketName, prefix, null,
+                                              fileSystem.getListPageSize());
+    try {
+      while (listing.hasNext()) {
+        S3Object listed = listing.next();
+        unseen.remove(listed.getKey());
+        if (fileSystem.checkListed(listed)) {
+          invalidations.incrementAndGet();
+        }
+        objects.incrementAndGet();
+        currentObjects = ++count;
+        throttle(start, count);
+      }
+    } finally {
+      listing.close();
+    }
+    for (String key : unseen) {
+      if (fileSystem.checkDeleted(key)) {
+        invalidations.incrementAndGet();
+      }
+    }
+  }
+
+  private void throttle(long start, long count) throws InterruptedException {
+    if (rate > 0) {
+      long wait = start + count * 1000 / rate - System.currentTimeMillis();
+      if (wait > 0) {
+        Thread.sleep(wait);
+      }
+    }
+  }
+}
@@ -16,11 +16,15 @@
 
 package com.thinkberg.vfs.s3.jets3t;
 
+import com.thinkberg.vfs.s3.cache.BlockCache;
+import com.thinkberg.vfs.s3.cache.ContentCache;
+import com.thinkberg.vfs.s3.cache.SlabCache;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.vfs.*;
 import org.apache.commons.vfs.provider.AbstractFileObject;
 import org.apache.commons.vfs.util.MonitorOutputStream;
+import org.apache.commons.vfs.util.RandomAccessMode;
 import org.jets3t.service.Constants;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
@@ -31,10 +35,15 @@ import org.jets3t.service.utils.Mimetypes;
 import java.io.*;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 
 /**
@@ -46,87 +55,492 @@ import java.util.Map;
 public class Jets3tFileObject extends AbstractFileObject {
   private static final Log LOG = LogFactory.getLog(Jets3tFileObject.class);
 
-  private static final String VFS_LAST_MODIFIED_TIME = "vfs-last-modified-time";
+  private static final long HEDGED_CONTENT_SIZE = 1024 * 1024;
 
+  private final Jets3tFileSystem fileSystem;
   private final S3Service service;
   private final S3Bucket bucket;
+  private final ContentCache contentCache;
+  private final BlockCache blockCache;
+  private final SlabCache slabCache;
 
   private boolean attached = false;
-  private boolean contentCached = false;
 
   private S3Object object;
+  private boolean complete;
+  private boolean implicit = false;
+  private boolean metadataChanged = false;
+  private S3Object storedDetails;
   private File cacheFile;
 
   public Jets3tFileObject(FileName fileName,
                           Jets3tFileSystem fileSystem,
                           S3Service service, S3Bucket bucket) {
     super(fileName, fileSystem);
+    this.fileSystem = fileSystem;
     this.service = service;
     this.bucket = bucket;
+    this.contentCache = fileSystem.getContentCache();
+    this.blockCache = fileSystem.getBlockCache();
+    this.slabCache = fileSystem.getSlabCache();
   }
 
   /**
    * Attach S3 Object to VFS object.
-   * This method only downloads the meta-data without the actual content.
+   * This method only downloads the meta-data without the actual content, which may
+   * come from the metadata cache of the file system.
    * If the object does not exist, it will be created locally.
    *
    * @throws Exception if the S3 access fails for some reason
    */
-  protected void doAttach() throws Exception {
+  protected synchronized void doAttach() throws Exception {
     if (!attached) {
-      try {
-        object = service.getObjectDetails(bucket, getS3Key());
-        if (object.getMetadata(VFS_LAST_MODIFIED_TIME) == null) {
-          // it is possible the bucket has no last-modified data, use the S3 data then
-          object.addMetadata(Constants.REST_METADATA_PREFIX + VFS_LAST_MODIFIED_TIME, "" + object.getLastModifiedDate().getTime());
-        }
-        contentCached = false;
-        LOG.debug(String.format("attaching (existing) '%s'", object.getKey()));
-      } catch (S3ServiceException e) {
-        object = new S3Object(bucket, getS3Key());
-        object.addMetadata(Constants.REST_METADATA_PREFIX + VFS_LAST_MODIFIED_TIME, "" + new Date().getTime());
-        contentCached = true;
-        LOG.debug(String.format("attaching (new) '%s'", object.getKey()));
-      }
-
+      loadDetails(false);
       attached = true;
     }
   }
 
-  protected void doDetach() throws Exception {
+  /**
+   * Load the object details. Details taken from a folder listing are used unless
+   * complete details including the user metadata are required.
+   *
+   * @param completeDetails true if the user metadata is required
+   */
+  private synchronized void loadDetails(boolean completeDetails) {
+    Jets3tFileSystem.Details details = null;
+    try {
+      details = fileSystem.getObjectDetails(getS3Key(), completeDetails);
+    } catch (S3ServiceException e) {
+      LOG.warn(String.format("can't get details of '%s': %s", getS3Key(), e.getMessage()));
+    }
+
+    if (null != details) {
+      object = details.object;
+      complete = details.complete;
+      implicit = details.implicit;
+      LOG.debug(String.format("attaching (existing%s) '%s'", complete ? "" : ", listed", object.getKey()));
+    } else {
+      object = new S3Object(bucket, getS3Key());
+      complete = true;
+      implicit = false;
+      LOG.debug(String.format("attaching (new) '%s'", object.getKey()));
+    }
+  }
+
+  /**
+   * Make sure the object details include the user metadata before it is read or
+   * written back to S3.
+   */
+  private synchronized void ensureCompleteDetails() {
+    if (!complete) {
+      loadDetails(true);
+    }
+  }
+
+  protected synchronized void doDetach() throws Exception {
     if (attached) {
       LOG.debug(String.format("detaching '%s' (cached=%b)", object.getKey(), (cacheFile != null)));
-      object = null;
-      if (cacheFile != null) {
-        cacheFile.delete();
+      try {
+        flushMetadata();
+      } finally {
+        // the content stays in the shared content cache
+        object = null;
         cacheFile = null;
-        contentCached = false;
+        metadataChanged = false;
+        storedDetails = null;
+        attached = false;
+      }
+    }
+  }
+
+  /**
+   * Note a change of the metadata. During a request all changes are collected and
+   * written in one update when the request ends or the file is closed, as each update
+   * copies the object within S3.
+   *
+   * @throws FileSystemException if the metadata cannot be written
+   */
+  private synchronized void changeMetadata() throws FileSystemException {
+    metadataChanged = true;
+    if (!fileSystem.deferMetadata(this)) {
+      flushMetadata();
+    }
+  }
+
+  /**
+   * Write changed metadata to S3. If the update fails, the details from before the
+   * changes are restored, so the object does not show changes that have not been written.
+   *
+   * @throws FileSystemException if the metadata cannot be written
+   */
+  synchronized void flushMetadata() throws FileSystemException {
+    if (!attached || !metadataChanged) {
+      return;
+    }
+    String key = object.getKey();
+    LOG.debug(String.format("writing metadata of '%s'", key));
+    try {
+      fileSystem.awaitUpload(key);
+      fileSystem.count("metadata");
+      service.updateObjectMetadata(bucket.getName(), object);
+      metadataChanged = false;
+    } catch (S3ServiceException e) {
+      throw new FileSystemException(String.format("can't write metadata of '%s'", key), e);
+    } finally {
+      fileSystem.invalidate(key);
+      if (metadataChanged) {
+        object = storedDetails;
+        metadataChanged = false;
       }
-      attached = false;
+      storedDetails = null;
     }
   }
 
-  protected void doDelete() throws Exception {
+  protected synchronized void doDelete() throws Exception {
     // do not delete the root folder
     if ("".equals(object.getKey())) {
       LOG.warn(String.format("ignored attempt to delete root folder '%s' ", bucket.getName()));
       return;
     }
     LOG.debug(String.format("deleting '%s'", object.getKey()));
-    service.deleteObject(bucket, object.getKey());
-    if (cacheFile != null) {
-      cacheFile.delete();
-      cacheFile = null;
-      contentCached = false;
+    WriteBehindQueue writeBehindQueue = fileSystem.getWriteBehindQueue();
+    if (null != writeBehindQueue) {
+      writeBehindQueue.cancel(object.getKey());
     }
+    service.deleteObject(bucket, object.getKey());
+    fileSystem.invalidate(object.getKey());
+    contentCache.remove(object.getKey());
+    blockCache.remove(object.getKey());
+    slabCache.remove(object.getKey());
+    cacheFile = null;
+    metadataChanged = false;
+    storedDetails = null;
     attached = false;
   }
 
+  /**
+   * Delete this file and its selected descendants. Other than the generic implementation,
+   * which visits one folder after the other, the subtree is found with a single prefix
+   * listing and the objects are deleted in parallel while the listing goes on. Files are
+   * deleted first, folders only if none of their descendants is left.
+   *
+   * @param selector selects the files to delete
+   * @return the number of deleted objects
+   * @throws FileSystemException if deleting fails
+   */
+  public int delete(FileSelector selector) throws FileSystemException {
+    if (!exists()) {
+      return 0;
+    }
+    if (!FileType.FOLDER.equals(getType())) {
+      return super.delete(selector);
+    }
+
+    final String path = getS3Key();
+    final String prefix = "".equals(path) ? "" : path + "/";
+    // the listing only shows what has been uploaded
+    fileSystem.awaitUploads(prefix);
+    final List<String> deleted = Collections.synchronizedList(new ArrayList<String>());
+    BatchOperation<String> delete = new BatchOperation<String>(fileSystem.getRequestExecutor(),
+                                                               fileSystem.getBatchWorkers(),
+                                                               fileSystem.getBatchRetries()) {
+      protected void execute(String key) throws Exception {
+        fileSystem.count("delete");
+        service.deleteObject(bucket, key);
+        fileSystem.invalidate(key);
+        contentCache.remove(key);
+        blockCache.remove(key);
+        slabCache.remove(key);
+        deleted.add(key);
+      }
+    };
+
+    // any key with descendants is a folder, whether it has an object or not
+    Set<String> folders = new HashSet<String>();
+    Map<String, Boolean> traversed = new HashMap<String, Boolean>();
+    Set<String> blocked = new HashSet<String>();
+    // empty objects may be folders, which is known only after listing their children
+    List<String> emptyObjects = new ArrayList<String>();
+    long listedCount = 0;
+    int count = 0;
+
+    ObjectListing listing = listObjects(prefix, null);
+    try {
+      traversed.put(path, selector.traverseDescendents(new ListedFileInfo(this, this, 0)));
+      List<S3Object> page;
+      while (!(page = listing.nextPage()).isEmpty()) {
+        List<String> selectedFiles = new ArrayList<String>();
+        for (S3Object child : page) {
+          String key = child.getKey();
+          if (key.length() <= prefix.length()) {
+            continue;
+          }
+          listedCount++;
+          for (int i = key.indexOf('/', prefix.length()); i != -1; i = key.indexOf('/', i + 1)) {
+            folders.add(key.substring(0, i));
+          }
+          if (!isSelected(key, prefix, selector, traversed)) {
+            // keep the folders this key lives in
+            for (int i = key.indexOf('/', prefix.length()); i != -1; i = key.indexOf('/', i + 1)) {
+              blocked.add(key.substring(0, i));
+            }
+          } else if (child.getContentLength() > 0) {
+            selectedFiles.add(key);
+          } else {
+            emptyObjects.add(key);
+          }
+        }
+        count += deleteListed(delete, selectedFiles, deleted, prefix, "files");
+      }
+
+      List<String> selectedFiles = new ArrayList<String>();
+      List<String> selectedFolders = new ArrayList<String>();
+      for (String key : emptyObjects) {
+        if (!folders.contains(key)) {
+          selectedFiles.add(key);
+        } else if (!blocked.contains(key)) {
+          selectedFolders.add(key);
+        }
+      }
+      count += deleteListed(delete, selectedFiles, deleted, prefix, "files");
+      count += deleteListed(delete, selectedFolders, deleted, prefix, "folders");
+
+      if (!blocked.contains(path) && count == listedCount &&
+          selector.includeFile(new ListedFileInfo(this, this, 0))) {
+        LOG.debug(String.format("deleting '%s'", path));
+        if (!"".equals(path)) {
+          // a folder without an object of its own is gone with its last child
+          if (null != object.getContentType() && !implicit) {
+            fileSystem.count("delete");
+            doDelete();
+          }
+          handleDelete();
+          count++;
+        }
+      }
+    } catch (FileSystemException e) {
+      throw e;
+    } catch (S3ServiceException e) {
+      throw new FileSystemException(String.format("can't list children of '%s'", path), e);
+    } catch (Exception e) {
+      throw new FileSystemException(String.format("can't delete '%s'", path), e);
+    } finally {
+      listing.close();
+      fileSystem.invalidateAll(prefix);
+    }
+    return count;
+  }
+
+  /**
+   * Delete a batch of listed objects and tell the file objects they are gone.
+   *
+   * @return the number of deleted objects
+   */
+  private int deleteListed(BatchOperation<String> delete, List<String> keys, List<String> deleted,
+                           String prefix, String description) throws FileSystemException {
+    try {
+      fileSystem.runBatch(delete, keys, String.format("delete %s below '%s'", description, prefix));
+      return keys.size();
+    } finally {
+      synchronized (deleted) {
+        for (String key : deleted) {
+          try {
+            Jets3tFileObject file = resolveListedFile(key, prefix);
+            file.refresh();
+            file.handleDelete();
+          } catch (Exception e) {
+            LOG.warn(String.format("can't notify deletion of '%s': %s", key, e.getMessage()));
+          }
+        }
+        deleted.clear();
+      }
+    }
+  }
+
+  /**
+   * Find the selected descendants of this folder. If the selector descends further than
+   * the direct children, the whole subtree is found with a single prefix listing and the
+   * selector is applied to the tree rebuilt from it, instead of listing each folder on
+   * its own. Whether the selector descends that far is asked for the folder itself at
+   * depth 1. Files are selected in the same order as by the generic implementation.
+   *
+   * @param selector  selects the files
+   * @param depthwise true to add files after their descendants
+   * @param selected  the list the selected files are added to
+   * @throws FileSystemException if listing or selecting fails
+   */
+  @SuppressWarnings("unchecked")
+  public void findFiles(FileSelector selector, boolean depthwise, List selected) throws FileSystemException {
+    String path = getS3Key();
+    try {
+      if (!exists() || !FileType.FOLDER.equals(getType()) ||
+          !selector.traverseDescendents(new ListedFileInfo(this, this, 0)) ||
+          !selector.traverseDescendents(new ListedFileInfo(this, this, 1))) {
+        // at most one level of children, which takes a single listing anyway
+        super.findFiles(selector, depthwise, selected);
+        return;
+      }
+    } catch (FileSystemException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new FileSystemException(String.format("can't select files below '%s'", path), e);
+    }
+
+    String prefix = "".equals(path) ? "" : path + "/";
+    fileSystem.awaitUploads(prefix);
+    Map<String, List<S3Object>> tree = new HashMap<String, List<S3Object>>();
+    Set<String> listed = new HashSet<String>();
+    ObjectListing listing = listObjects(prefix, null);
+    try {
+      while (listing.hasNext()) {
+        S3Object child = listing.next();
+        String key = child.getKey();
+        if (key.length() <= prefix.length()) {
+          continue;
+        }
+        if (key.endsWith("/")) {
+          // folder marker of other tools, the folder is there even if it is empty
+          addListedFolder(tree, listed, key.substring(0, key.length() - 1), path);
+          continue;
+        }
+        int lastSlash = key.lastIndexOf('/');
+        String parent = lastSlash < prefix.length() ? path : key.substring(0, lastSlash);
+        List<S3Object> children = tree.get(parent);
+        if (null == children) {
+          children = new ArrayList<S3Object>();
+          tree.put(parent, children);
+        }
+        children.add(child);
+        listed.add(key);
+      }
+    } catch (S3ServiceException e) {
+      throw new FileSystemException(String.format("can't list children of '%s'", path), e);
+    } finally {
+      listing.close();
+    }
+
+    // folders without an object of their own only show up as the parents of their children
+    for (String folder : new ArrayList<String>(tree.keySet())) {
+      addListedFolder(tree, listed, folder, path);
+    }
+
+    // the listing tells the type of everything but empty files, attaching needs no HEAD
+    for (List<S3Object> children : tree.values()) {
+      for (S3Object child : children) {
+        if (child.getETag() == null) {
+          // implicit folders are already known
+          continue;
+        }
+        if (tree.containsKey(child.getKey())) {
+          child.setContentType(Mimetypes.MIMETYPE_JETS3T_DIRECTORY);
+          fileSystem.putListedDetails(child);
+        } else if (child.getContentLength() > 0) {
+          child.setContentType(Mimetypes.getInstance().getMimetype(child.getKey()));
+          fileSystem.putListedDetails(child);
+        }
+      }
+    }
+
+    try {
+      selectListed(this, path, 0, prefix, tree, selector, depthwise, selected);
+    } catch (FileSystemException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new FileSystemException(String.format("can't select files below '%s'", path), e);
+    }
+  }
+
+  /**
+   * Make sure a folder found in a listing is a child of its parent in the tree, even if
+   * it has no object of its own. The same is done for its parents.
+   *
+   * @param tree   the tree of listed objects by parent key
+   * @param listed the keys in the tree
+   * @param folder the folder key
+   * @param path   the key of the listed folder, the root of the tree
+   */
+  private void addListedFolder(Map<String, List<S3Object>> tree, Set<String> listed, String folder, String path) {
+    if (!tree.containsKey(folder)) {
+      tree.put(folder, new ArrayList<S3Object>());
+    }
+    while (!folder.equals(path) && !listed.contains(folder)) {
+      int lastSlash = folder.lastIndexOf('/');
+      String parent = lastSlash <= path.length() ? path : folder.substring(0, lastSlash);
+      List<S3Object> children = tree.get(parent);
+      if (null == children) {
+        children = new ArrayList<S3Object>();
+        tree.put(parent, children);
+      }
+      children.add(fileSystem.putImplicitFolder(folder));
+      listed.add(folder);
+      folder = parent;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void selectListed(Jets3tFileObject file, String key, int depth, String prefix,
+                            Map<String, List<S3Object>> tree, FileSelector selector, boolean depthwise,
+                            List selected) throws Exception {
+    int index = selected.size();
+    ListedFileInfo info = new ListedFileInfo(this, file, depth);
+    List<S3Object> children = tree.get(key);
+    if (null != children && selector.traverseDescendents(info)) {
+      for (S3Object child : children) {
+        selectListed(resolveListedFile(child.getKey(), prefix), child.getKey(), depth + 1, prefix, tree,
+                     selector, depthwise, selected);
+      }
+    }
+    if (selector.includeFile(info)) {
+      if (depthwise) {
+        selected.add(file);
+      } else {
+        selected.add(index, file);
+      }
+    }
+  }
+
+  private boolean isSelected(String key, String prefix, FileSelector selector, Map<String, Boolean> traversed)
+          throws Exception {
+    int lastSlash = key.lastIndexOf('/');
+    String parent = lastSlash < prefix.length() ? getS3Key() : key.substring(0, lastSlash);
+    return isTraversed(parent, prefix, selector, traversed) &&
+           selector.includeFile(new ListedFileInfo(this, resolveListedFile(key, prefix), getDepth(key, prefix)));
+  }
+
+  private boolean isTraversed(String folder, String prefix, FileSelector selector, Map<String, Boolean> traversed)
+          throws Exception {
+    Boolean result = traversed.get(folder);
+    if (null == result) {
+      int lastSlash = folder.lastIndexOf('/');
+      String parent = lastSlash < prefix.length() ? getS3Key() : folder.substring(0, lastSlash);
+      result = isTraversed(parent, prefix, selector, traversed) &&
+               selector.traverseDescendents(new ListedFileInfo(this, resolveListedFile(folder, prefix),
+                                                               getDepth(folder, prefix)));
+      traversed.put(folder, result);
+    }
+    return result;
+  }
+
+  private Jets3tFileObject resolveListedFile(String key, String prefix) throws FileSystemException {
+    return (Jets3tFileObject) resolveFile(key.substring(prefix.length()), NameScope.DESCENDENT);
+  }
+
+  private static int getDepth(String key, String prefix) {
+    int depth = 1;
+    for (int i = key.indexOf('/', prefix.length()); i != -1; i = key.indexOf('/', i + 1)) {
+      depth++;
+    }
+    return depth;
+  }
+
   protected void doRename(FileObject targetFileObject) throws Exception {
-    String bucketId = bucket.getName();
+    final String bucketId = bucket.getName();
     S3Object targetObject = ((Jets3tFileObject) targetFileObject).object;
 
     LOG.debug(String.format("move object '%s' to '%s'", getS3Key(), targetObject.getKey()));
+    // S3 moves what has been uploaded, with the metadata written so far
+    fileSystem.flushMetadata();
+    fileSystem.awaitUploads(getS3Key());
 
     // if this is a folder, then rename all children of the current folder too
     if (FileType.FOLDER.equals(getType())) {
@@ -136,93 +550,546 @@ public class Jets3tFileObject extends AbstractFileObject {
         path = path + "/";
       }
 
+      final String sourceName = object.getKey();
+      final String targetName = targetObject.getKey();
+
+      // the children are independent of each other, move them in parallel
+      BatchOperation<String> rename = new BatchOperation<String>(fileSystem.getRequestExecutor(),
+                                                                 fileSystem.getBatchWorkers(),
+                                                                 fileSystem.getBatchRetries()) {
+        protected void execute(String key) throws Exception {
+          fileSystem.count("rename");
+          service.renameObject(bucketId, key, new S3Object(bucket, targetName + key.substring(sourceName.length())));
+        }
+      };
+      ObjectListing listing = listObjects(path, null);
       try {
-        S3Object[] children = service.listObjects(bucket, path, null);
-        String targetName = targetObject.getKey();
-        for (S3Object child : children) {
-          String targetChildName = child.getKey();
-          targetChildName = targetName + targetChildName.substring(object.getKey().length());
-          service.renameObject(bucketId, child.getKey(), new S3Object(bucket, targetChildName));
+        // move the children page by page as they are listed
+        List<S3Object> page;
+        while (!(page = listing.nextPage()).isEmpty()) {
+          List<String> childKeys = new ArrayList<String>(page.size());
+          for (S3Object child : page) {
+            // children moved into a target below this folder must not be moved again
+            if (!child.getKey().startsWith(targetName + "/")) {
+              childKeys.add(child.getKey());
+            }
+          }
+          fileSystem.runBatch(rename, childKeys,
+                              String.format("move children of '%s' to '%s'", sourceName, targetName));
         }
       } catch (S3ServiceException e) {
-        throw new FileSystemException(String.format("can't move children of '%s' to '%s'", object.getKey(), targetObject.getKey()), e);
+        throw new FileSystemException(String.format("can't list children of '%s'", sourceName), e);
+      } finally {
+        listing.close();
+        fileSystem.invalidateAll(path);
+        fileSystem.invalidateAll(targetName + "/");
       }
     }
 
+    if (implicit) {
+      // a folder without an object of its own has moved with its children
+      fileSystem.invalidate(object.getKey());
+      fileSystem.invalidate(targetObject.getKey());
+      return;
+    }
     try {
       service.renameObject(bucket.getName(), object.getKey(), ((Jets3tFileObject) targetFileObject).object);
+      fileSystem.invalidate(object.getKey());
+      fileSystem.invalidate(targetObject.getKey());
     } catch (S3ServiceException e) {
       throw new FileSystemException("can't rename  object", e);
     }
   }
 
+  /**
+   * Copy files from another file object. If the source belongs to this file system, the
+   * objects are copied by S3 itself, including their user metadata, and the content
+   * never leaves S3. The objects are independent of each other and copied in parallel.
+   *
+   * @param file     the source file or folder
+   * @param selector selects the descendants of the source to copy
+   * @throws FileSystemException if copying fails
+   */
   public void copyFrom(FileObject file, FileSelector selector) throws FileSystemException {
-    // TODO must implement to support attribute copy
-    super.copyFrom(file, selector);
+    if (!(file instanceof Jets3tFileObject) || fileSystem != ((Jets3tFileObject) file).fileSystem) {
+      super.copyFrom(file, selector);
+      return;
+    }
+    if (!file.exists()) {
+      throw new FileSystemException("vfs.provider/copy-missing-file.error", file);
+    }
+    // S3 copies what has been uploaded, with the metadata written so far
+    fileSystem.flushMetadata();
+    fileSystem.awaitUploads(((Jets3tFileObject) file).getS3Key());
+
+    List<FileObject> files = new ArrayList<FileObject>();
+    file.findFiles(selector, false, files);
+
+    // parents come before their children, clear conflicting targets in that order
+    final Map<String, Jets3tFileObject> targets = new HashMap<String, Jets3tFileObject>();
+    final Map<String, FileType> types = new HashMap<String, FileType>();
+    List<String> keys = new ArrayList<String>();
+    for (FileObject source : files) {
+      String relativePath = file.getName().getRelativeName(source.getName());
+      Jets3tFileObject target = (Jets3tFileObject) resolveFile(relativePath, NameScope.DESCENDENT_OR_SELF);
+      if (target.exists() && target.getType() != source.getType()) {
+        target.delete(Selectors.SELECT_ALL);
+      }
+      String key = ((Jets3tFileObject) source).getS3Key();
+      if ("".equals(key) || ((Jets3tFileObject) source).implicit) {
+        // the bucket root and implicit folders have no object to copy
+        target.createFolder();
+        continue;
+      }
+      keys.add(key);
+      targets.put(key, target);
+      types.put(key, source.getType());
+    }
+
+    BatchOperation<String> copy = new BatchOperation<String>(fileSystem.getRequestExecutor(),
+                                                             fileSystem.getBatchWorkers(),
+                                                             fileSystem.getBatchRetries()) {
+      protected void execute(String key) throws Exception {
+        fileSystem.count("copy");
+        S3Object targetObject = new S3Object(bucket, targets.get(key).getS3Key());
+        service.copyObject(bucket.getName(), key, bucket.getName(), targetObject, false);
+      }
+    };
+    try {
+      String sourceKey = ((Jets3tFileObject) file).getS3Key();
+      fileSystem.runBatch(copy, keys, String.format("copy '%s' to '%s'", sourceKey, getS3Key()));
+    } finally {
+      for (String key : keys) {
+        Jets3tFileObject target = targets.get(key);
+        fileSystem.invalidate(target.getS3Key());
+        blockCache.remove(target.getS3Key());
+        slabCache.remove(target.getS3Key());
+        try {
+          // forget the state of the target before this copy, then tell its parent
+          target.refresh();
+          target.handleCreate(types.get(key));
+        } catch (Exception e) {
+          LOG.warn(String.format("can't notify creation of '%s': %s", target.getS3Key(), e.getMessage()));
+        }
+      }
+    }
   }
 
-  protected void doCreateFolder() throws Exception {
+
+  protected synchronized void doCreateFolder() throws Exception {
     if (!Mimetypes.MIMETYPE_JETS3T_DIRECTORY.equals(object.getContentType())) {
       object.setContentType(Mimetypes.MIMETYPE_JETS3T_DIRECTORY);
 
       LOG.debug(String.format("creating folder '%s'", object.getKey()));
       service.putObject(bucket, object);
+      fileSystem.invalidate(object.getKey());
     }
   }
 
-  protected long doGetLastModifiedTime() throws Exception {
-    String timeStamp = (String) object.getMetadata(VFS_LAST_MODIFIED_TIME);
-    if (null != timeStamp) {
-      return Long.parseLong(timeStamp);
-    }
-    return 0;
+  /**
+   * Get the time S3 last stored this object. Listings and HEAD requests both carry it,
+   * so validators derived from it do not depend on how the details were loaded.
+   *
+   * @return the last modification time or 0 if the object has not been stored yet
+   * @throws Exception if the time cannot be determined
+   */
+  protected synchronized long doGetLastModifiedTime() throws Exception {
+    Date lastModified = object.getLastModifiedDate();
+    return null == lastModified ? 0 : lastModified.getTime();
   }
 
-  protected void doSetLastModifiedTime(final long modtime) throws Exception {
-    object.addMetadata(Constants.REST_METADATA_PREFIX + VFS_LAST_MODIFIED_TIME, modtime);
-    service.updateObjectMetadata(bucket.getName(), object);
+  /**
+   * Get the content of this file if it has been written but not uploaded yet.
+   *
+   * @return the local content or null if there is no pending upload
+   */
+  private File getPendingContent() {
+    WriteBehindQueue writeBehindQueue = fileSystem.getWriteBehindQueue();
+    return null == writeBehindQueue ? null : writeBehindQueue.getPendingContent(getS3Key());
   }
 
+  /**
+   * Get the content of the object. Cached content is read from the content cache.
+   * Otherwise the content is streamed from S3 while it is being copied to the cache,
+   * so reading can start with the first bytes received. Concurrent readers of the
+   * object share a single download.
+   *
+   * @return the content stream
+   * @throws Exception if the content cannot be read
+   */
   protected InputStream doGetInputStream() throws Exception {
-    if (!contentCached) {
-      object = service.getObject(bucket, getS3Key());
-      LOG.debug(String.format("caching content of '%s'", object.getKey()));
-
-      InputStream objectInputStream = object.getDataInputStream();
-      if (object.getContentLength() > 0) {
-        ReadableByteChannel rbc = Channels.newChannel(objectInputStream);
-        FileChannel cacheFc = getCacheFile().getChannel();
-        cacheFc.transferFrom(rbc, 0, object.getContentLength());
-        cacheFc.close();
-        rbc.close();
-      } else {
-        objectInputStream.close();
+    String key = getS3Key();
+    fileSystem.setRequestContentChannel(null);
+    File pendingContent = getPendingContent();
+    if (null != pendingContent) {
+      try {
+        return openLocalContent(pendingContent);
+      } catch (FileNotFoundException e) {
+        // uploaded while we were looking
+        LOG.debug(String.format("pending content of '%s' has been uploaded", key));
+        loadDetails(false);
       }
-      contentCached = true;
     }
 
-    return Channels.newInputStream(getCacheFile().getChannel());
+    S3Object changed = revalidate();
+    if (null != changed) {
+      // the answer to the revalidation already carries the new content
+      return cacheContent(changed);
+    }
+
+    String eTag;
+    long contentLength;
+    synchronized (this) {
+      eTag = object.getETag();
+      contentLength = object.getContentLength();
+    }
+    // small objects usually arrive fast, a slow response is worth a second request
+    boolean hedged = contentLength <= HEDGED_CONTENT_SIZE;
+    if (slabCache.accepts(contentLength)) {
+      InputStream content = getSmallContent(key, eTag, hedged);
+      if (null != content) {
+        return content;
+      }
+    }
+
+    File cachedContent;
+    synchronized (this) {
+      if (null == cacheFile) {
+        cacheFile = contentCache.get(key, eTag);
+      }
+      cachedContent = cacheFile;
+    }
+    if (null != cachedContent) {
+      try {
+        return openLocalContent(cachedContent);
+      } catch (FileNotFoundException e) {
+        // evicted while we were looking, fetch again
+        LOG.debug(String.format("cached content of '%s' is gone", key));
+        synchronized (this) {
+          if (cachedContent.equals(cacheFile)) {
+            cacheFile = null;
+          }
+        }
+      }
+    }
+
+    return fileSystem.fetchContent(key, eTag, hedged).openStream();
+  }
+
+  /**
+   * Open a local file holding the content and tell the file system about it, so the
+   * current request can send the file without copying it through the heap.
+   *
+   * @param file the pending or cached content
+   * @return the stream
+   * @throws FileNotFoundException if the file is gone
+   */
+  private InputStream openLocalContent(File file) throws FileNotFoundException {
+    FileInputStream is = new FileInputStream(file);
+    fileSystem.setRequestContentChannel(is.getChannel());
+    return is;
+  }
+
+  /**
+   * Get the content of a small object from the slab cache. Content found in the disk
+   * cache instead is moved up into the slab cache, missing content is fetched from S3.
+   *
+   * @param key    the S3 key
+   * @param eTag   the ETag of the version we know
+   * @param hedged true if a GET may be hedged
+   * @return a stream reading the content or null if the object is not small anymore
+   * @throws IOException if the content cannot be read
+   */
+  private InputStream getSmallContent(String key, String eTag, boolean hedged) throws IOException {
+    InputStream cached = slabCache.get(key, eTag);
+    if (null != cached) {
+      return cached;
+    }
+    byte[] content = null;
+    File cachedContent = contentCache.get(key, eTag);
+    if (null != cachedContent) {
+      try {
+        content = Jets3tFileSystem.readContent(new FileInputStream(cachedContent), (int) cachedContent.length());
+        slabCache.put(key, eTag, content);
+      } catch (IOException e) {
+        // evicted while we were looking, fetch again
+        LOG.debug(String.format("cached content of '%s' is gone", key));
+      }
+    }
+    if (null == content) {
+      content = fileSystem.fetchSmallContent(key, eTag, hedged);
+    }
+    return null == content ? null : new ByteArrayInputStream(content);
+  }
+
+  /**
+   * Get random access to the content. Unless the content is already cached, only the
+   * blocks actually read are fetched from S3 and kept in the block cache.
+   *
+   * @param mode the access mode, only reading is supported
+   * @return the random access content
+   * @throws Exception if the content cannot be accessed
+   */
+  protected RandomAccessContent doGetRandomAccessContent(RandomAccessMode mode) throws Exception {
+    File pendingContent = getPendingContent();
+    if (null != pendingContent) {
+      S3Object pending;
+      synchronized (this) {
+        pending = object;
+      }
+      try {
+        return new Jets3tRandomAccessContent(fileSystem, service, bucket, pending, pendingContent, null,
+                                             blockCache, mode);
+      } catch (FileNotFoundException e) {
+        // uploaded while we were looking
+        LOG.debug(String.format("pending content of '%s' has been uploaded", getS3Key()));
+        loadDetails(false);
+      }
+    }
+
+    S3Object changed = revalidate();
+    if (null != changed) {
+      // keep the new content, meanwhile the blocks are read as needed
+      cacheContent(changed).close();
+    }
+
+    S3Object current;
+    synchronized (this) {
+      current = object;
+    }
+    InputStream memoryContent = null;
+    File cachedContent = null;
+    if (slabCache.accepts(current.getContentLength())) {
+      memoryContent = slabCache.get(getS3Key(), current.getETag());
+    }
+    if (null == memoryContent) {
+      cachedContent = contentCache.get(getS3Key(), current.getETag());
+    }
+    return new Jets3tRandomAccessContent(fileSystem, service, bucket, current, cachedContent, memoryContent,
+                                         blockCache, mode);
+  }
+
+  /**
+   * Make sure the cached content of this file is still current before it is used. Once
+   * the metadata cache no longer confirms our details they may be outdated, then S3 is
+   * asked whether the object changed. Without cached content there is nothing to check,
+   * it is fetched anyway.
+   *
+   * @return the changed object including its content or null if the cached content is current
+   * @throws IOException if S3 can not be asked
+   */
+  private S3Object revalidate() throws IOException {
+    S3Object current;
+    boolean currentComplete;
+    synchronized (this) {
+      String key = object.getKey();
+      if (implicit || !(slabCache.contains(key, object.getETag()) || contentCache.contains(key, object.getETag()))) {
+        return null;
+      }
+      current = fileSystem.copyDetails(object);
+      currentComplete = complete && !metadataChanged;
+    }
+    S3Object changed = fileSystem.revalidate(current, currentComplete);
+    if (null != changed) {
+      synchronized (this) {
+        object = fileSystem.copyDetails(changed);
+        complete = true;
+        cacheFile = null;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Keep the content of an object that arrived with its details. Small content goes
+   * into the slab cache right away, other content is copied into the content cache.
+   *
+   * @param fetchedObject the object including its content
+   * @return a stream reading the content
+   * @throws Exception if the content cannot be read
+   */
+  private InputStream cacheContent(S3Object fetchedObject) throws Exception {
+    if (slabCache.accepts(fetchedObject.getContentLength())) {
+      byte[] content = Jets3tFileSystem.readContent(fetchedObject.getDataInputStream(),
+                                                    (int) fetchedObject.getContentLength());
+      slabCache.put(fetchedObject.getKey(), fetchedObject.getETag(), content);
+      return new ByteArrayInputStream(content);
+    }
+    return fileSystem.startContentFill(fetchedObject).openStream();
   }
 
   protected OutputStream doGetOutputStream(boolean bAppend) throws Exception {
-    return new MonitorOutputStream(Channels.newOutputStream(getCacheFile().getChannel())) {
+    // the user metadata is written back with the content, the stream keeps its object
+    // even if this file is detached while it is written
+    final S3Object object;
+    synchronized (this) {
+      ensureCompleteDetails();
+      object = this.object;
+    }
+    long contentLength = fileSystem.takeRequestContentLength();
+    final WriteBehindQueue writeBehindQueue = fileSystem.getWriteBehindQueue();
+    if (null == writeBehindQueue && !bAppend && contentLength >= 0) {
+      if (slabCache.accepts(contentLength)) {
+        return getMemoryOutputStream(object, (int) contentLength);
+      }
+      return getStreamingOutputStream(object, contentLength);
+    }
+
+    final File spoolFile = null == writeBehindQueue ? contentCache.createTempFile() : writeBehindQueue.createSpoolFile();
+    if (bAppend && exists()) {
+      InputStream is = doGetInputStream();
+      FileChannel spoolFc = new FileOutputStream(spoolFile).getChannel();
+      try {
+        spoolFc.transferFrom(Channels.newChannel(is), 0, object.getContentLength());
+      } finally {
+        spoolFc.close();
+        is.close();
+      }
+    }
+
+    return new MonitorOutputStream(new FileOutputStream(spoolFile, bAppend)) {
+      protected void onClose() throws IOException {
+        if (null != writeBehindQueue) {
+          // durably journaled, the upload happens in the background
+          writeBehindQueue.enqueue(object, spoolFile);
+          fileSystem.invalidate(object.getKey());
+          blockCache.remove(object.getKey());
+          slabCache.remove(object.getKey());
+          setCacheFile(null);
+          return;
+        }
+
+        InputStream spoolInputStream = new FileInputStream(spoolFile);
+        try {
+          LOG.debug(String.format("sending '%s' to storage (%d bytes)", object.getKey(), spoolFile.length()));
+          object.setContentLength(spoolFile.length());
+          object.setDataInputStream(spoolInputStream);
+          S3Object storedObject = service.putObject(bucket, object);
+          object.setDataInputStream(null);
+          fileSystem.invalidate(object.getKey());
+          blockCache.remove(object.getKey());
+          slabCache.remove(object.getKey());
+          spoolInputStream.close();
+
+          // what we just sent is the current content, keep it
+          if (storedObject.getETag() != null) {
+            setCacheFile(contentCache.put(object.getKey(), storedObject.getETag(), spoolFile));
+          } else {
+            contentCache.remove(object.getKey());
+            setCacheFile(null);
+          }
+        } catch (S3ServiceException e) {
+          IOException ioe = new IOException(String.format("can't send object '%s' to storage", object.getKey()));
+          ioe.initCause(e);
+          throw ioe;
+        } finally {
+          spoolInputStream.close();
+          spoolFile.delete();
+        }
+      }
+    };
+  }
+
+  /**
+   * Collect the content of a small object in memory and send it to S3 when the stream
+   * is closed. Once S3 confirmed the upload, the content goes into the slab cache.
+   *
+   * @param object        the object to write
+   * @param contentLength the number of bytes that will be written
+   * @return the output stream
+   */
+  private OutputStream getMemoryOutputStream(final S3Object object, int contentLength) {
+    final ByteArrayOutputStream buffer = new ByteArrayOutputStream(contentLength);
+    fileSystem.count("put.memory");
+
+    return new MonitorOutputStream(buffer) {
       protected void onClose() throws IOException {
+        byte[] content = buffer.toByteArray();
         try {
-          LOG.debug(String.format("sending '%s' to storage (cached=%b)", object.getKey(), cacheFile));
-          if (cacheFile != null) {
-            FileChannel cacheFc = getCacheFile().getChannel();
-            object.setContentLength(cacheFc.size());
-            object.setDataInputStream(Channels.newInputStream(cacheFc));
+          LOG.debug(String.format("sending '%s' to storage from memory (%d bytes)", object.getKey(), content.length));
+          object.setContentLength(content.length);
+          object.setDataInputStream(new ByteArrayInputStream(content));
+          S3Object storedObject = service.putObject(bucket, object);
+          object.setDataInputStream(null);
+          fileSystem.invalidate(object.getKey());
+          blockCache.remove(object.getKey());
+          contentCache.remove(object.getKey());
+          setCacheFile(null);
+
+          // what we just sent is the current content, keep it
+          if (!slabCache.put(object.getKey(), storedObject.getETag(), content)) {
+            slabCache.remove(object.getKey());
           }
-          service.putObject(bucket, object);
         } catch (S3ServiceException e) {
-          LOG.error(String.format("can't send object '%s' to storage", object), e);
+          IOException ioe = new IOException(String.format("can't send object '%s' to storage", object.getKey()));
+          ioe.initCause(e);
+          throw ioe;
+        }
+      }
+    };
+  }
+
+  /**
+   * Send the content to S3 while it is written. A copy of the content goes into a
+   * temporary file, which becomes the cached content once S3 confirmed the upload.
+   *
+   * @param object        the object to write
+   * @param contentLength the number of bytes that will be written
+   * @return the output stream
+   * @throws IOException if the cache file cannot be created
+   */
+  private OutputStream getStreamingOutputStream(final S3Object object, long contentLength) throws IOException {
+    final File teeFile = contentLength <= contentCache.getMaxSize() ? contentCache.createTempFile() : null;
+    final OutputStream teeStream = null == teeFile ? null : new BufferedOutputStream(new FileOutputStream(teeFile));
+    LOG.debug(String.format("streaming '%s' to storage (%d bytes)", object.getKey(), contentLength));
+    final StreamingUpload upload = new StreamingUpload(fileSystem.getExecutor(), service, bucket, object,
+                                                       contentLength, teeStream, fileSystem.getUploadChunkSize(),
+                                                       fileSystem.getUploadQueueLength());
+    fileSystem.count("put.stream");
+
+    return new MonitorOutputStream(upload) {
+      protected void onClose() throws IOException {
+        boolean keep = false;
+        try {
+          object.setDataInputStream(null);
+          fileSystem.invalidate(object.getKey());
+          blockCache.remove(object.getKey());
+          slabCache.remove(object.getKey());
+          if (null != teeStream) {
+            teeStream.close();
+          }
+
+          // what we just sent is the current content, keep it
+          S3Object storedObject = upload.getStoredObject();
+          if (null != teeFile && null != storedObject && !upload.hasTeeFailed() && null != storedObject.getETag()) {
+            setCacheFile(contentCache.put(object.getKey(), storedObject.getETag(), teeFile));
+            keep = true;
+          } else {
+            contentCache.remove(object.getKey());
+            setCacheFile(null);
+          }
+        } finally {
+          if (!keep && null != teeFile) {
+            teeFile.delete();
+          }
         }
       }
     };
   }
 
-  protected FileType doGetType() throws Exception {
+  private synchronized void setCacheFile(File file) {
+    cacheFile = file;
+  }
+
+  /**
+   * Get the type of this file. Folders are marked by the directory content type. A key
+   * that has no object of its own but keys below it, like the ones written by other
+   * tools, is an implicit folder.
+   *
+   * @return the file type
+   * @throws Exception if the type cannot be determined
+   */
+  protected synchronized FileType doGetType() throws Exception {
     if (null == object.getContentType()) {
       return FileType.IMAGINARY;
     }
@@ -235,6 +1102,15 @@ public class Jets3tFileObject extends AbstractFileObject {
     return FileType.FILE;
   }
 
+  /**
+   * List the children of this folder. The listing contains size, last modification
+   * date and ETag of each child, which are handed to the metadata cache so attaching
+   * the children does not need a HEAD request each. Zero length objects are files
+   * or folders, they are only known to be folders if they have children themselves.
+   *
+   * @return the base names of the children
+   * @throws FileSystemException if the listing fails
+   */
   protected String[] doListChildren() throws FileSystemException {
     String path = object.getKey();
     // make sure we add a '/' slash at the end to find children
@@ -242,28 +1118,69 @@ public class Jets3tFileObject extends AbstractFileObject {
       path = path + "/";
     }
 
+    ObjectListing listing = listObjects(path, "/");
     try {
-      S3Object[] children = service.listObjects(bucket, path, "/");
-      String[] childrenNames = new String[children.length];
-      for (int i = 0; i < children.length; i++) {
-        if (!children[i].getKey().equals(path)) {
-          // strip path from name (leave only base name)
-          childrenNames[i] = children[i].getKey().replaceAll("[^/]*//*", "");
+      Set<String> childrenNames = new LinkedHashSet<String>();
+      // empty objects are folders if they have children, which may be listed on a later page
+      List<S3Object> emptyChildren = new ArrayList<S3Object>();
+      while (listing.hasNext()) {
+        S3Object child = listing.next();
+        String key = child.getKey();
+        if (key.equals(path)) {
+          continue;
+        }
+        if (child.getContentLength() > 0) {
+          child.setContentType(Mimetypes.getInstance().getMimetype(key));
+          fileSystem.putListedDetails(child);
+        } else {
+          emptyChildren.add(child);
+        }
+        // strip path from name (leave only base name)
+        childrenNames.add(key.substring(path.length()));
+      }
+
+      for (S3Object child : emptyChildren) {
+        // "folder/child/" has children, so the object "folder/child" is a folder
+        if (listing.getCommonPrefixes().contains(child.getKey() + "/")) {
+          child.setContentType(Mimetypes.MIMETYPE_JETS3T_DIRECTORY);
+          fileSystem.putListedDetails(child);
+        }
+      }
+
+      // folders without an object of their own, created by other tools
+      for (String commonPrefix : listing.getCommonPrefixes()) {
+        String name = commonPrefix.substring(path.length(), commonPrefix.length() - 1);
+        if (name.length() > 0 && childrenNames.add(name)) {
+          fileSystem.putImplicitFolder(commonPrefix.substring(0, commonPrefix.length() - 1));
+        }
+      }
+
+      // files written but not uploaded yet
+      WriteBehindQueue writeBehindQueue = fileSystem.getWriteBehindQueue();
+      if (null != writeBehindQueue) {
+        for (String key : writeBehindQueue.getPendingKeys(path)) {
+          String name = key.substring(path.length());
+          if (name.length() > 0 && name.indexOf('/') == -1 && !childrenNames.contains(name)) {
+            childrenNames.add(name);
+          }
         }
       }
 
-      return childrenNames;
+      return childrenNames.toArray(new String[childrenNames.size()]);
     } catch (S3ServiceException e) {
       throw new FileSystemException(String.format("can't list children of '%s'", path), e);
+    } finally {
+      listing.close();
     }
   }
 
-  protected long doGetContentSize() throws Exception {
+  protected synchronized long doGetContentSize() throws Exception {
     return object.getContentLength();
   }
 
   @SuppressWarnings("unchecked")
-  protected Map doGetAttributes() throws Exception {
+  protected synchronized Map doGetAttributes() throws Exception {
+    ensureCompleteDetails();
     Map metaData = object.getModifiableMetadata();
     Map attributes = new HashMap<Object, Object>(metaData.size());
     for (Object key : metaData.keySet()) {
@@ -278,12 +1195,31 @@ public class Jets3tFileObject extends AbstractFileObject {
   }
 
   @SuppressWarnings("unchecked")
-  protected void doSetAttribute(String attrName, Object value) throws Exception {
-    object.addMetadata(Constants.REST_METADATA_PREFIX + attrName, value);
-    service.updateObjectMetadata(bucket.getName(), object);
+  protected synchronized void doSetAttribute(String attrName, Object value) throws Exception {
+    ensureCompleteDetails();
+    if (!metadataChanged) {
+      storedDetails = fileSystem.copyDetails(object);
+    }
+    if (null == value) {
+      object.removeMetadata(Constants.REST_METADATA_PREFIX + attrName);
+    } else {
+      object.addMetadata(Constants.REST_METADATA_PREFIX + attrName, value);
+    }
+    changeMetadata();
   }
 
   // Utility methods
+  /**
+   * List the objects below a prefix page by page.
+   *
+   * @param prefix    the key prefix
+   * @param delimiter the delimiter to group keys by or null to list all keys
+   * @return the listing
+   */
+  private ObjectListing listObjects(String prefix, String delimiter) {
+    return new ObjectListing(fileSystem, service, bucket.getName(), prefix, delimiter, fileSystem.getListPageSize());
+  }
+
   /**
    * Create an S3 key from a commons-vfs path. This simply
    * strips the slash from the beginning if it exists.
@@ -299,11 +1235,30 @@ public class Jets3tFileObject extends AbstractFileObject {
     }
   }
 
-  private RandomAccessFile getCacheFile() throws IOException, S3ServiceException {
-    if (cacheFile == null) {
-      cacheFile = File.createTempFile("moxo.", ".s3f");
-      cacheFile.deleteOnExit();
+  /**
+   * Selection info for a file found in a listing.
+   */
+  private static class ListedFileInfo implements FileSelectInfo {
+    private final FileObject baseFolder;
+    private final FileObject file;
+    private final int depth;
+
+    ListedFileInfo(FileObject baseFolder, FileObject file, int depth) {
+      this.baseFolder = baseFolder;
+      this.file = file;
+      this.depth = depth;
+    }
+
+    public FileObject getBaseFolder() {
+      return baseFolder;
+    }
+
+    public FileObject getFile() {
+      return file;
+    }
+
+    public int getDepth() {
+      return depth;
     }
-    return new RandomAccessFile(cacheFile, "rw");
   }
 }
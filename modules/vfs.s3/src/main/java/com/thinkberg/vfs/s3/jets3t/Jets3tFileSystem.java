@@ -18,6 +18,12 @@ package com.thinkberg.vfs.s3.jets3t;
 
 import com.thinkberg.vfs.s3.S3FileName;
 import com.thinkberg.vfs.s3.S3FileProvider;
+import com.thinkberg.vfs.s3.S3FileSystemConfigBuilder;
+import com.thinkberg.vfs.s3.cache.BlockCache;
+import com.thinkberg.vfs.s3.cache.CacheFill;
+import com.thinkberg.vfs.s3.cache.ContentCache;
+import com.thinkberg.vfs.s3.cache.ExpiringCache;
+import com.thinkberg.vfs.s3.cache.SlabCache;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.vfs.FileName;
@@ -25,11 +31,37 @@ import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.FileSystemOptions;
 import org.apache.commons.vfs.provider.AbstractFileSystem;
+import org.jets3t.service.S3ObjectsChunk;
 import org.jets3t.service.S3Service;
 import org.jets3t.service.S3ServiceException;
 import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.utils.Mimetypes;
 
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * An S3 file system.
@@ -39,8 +71,71 @@ import java.util.Collection;
 public class Jets3tFileSystem extends AbstractFileSystem {
   private static final Log LOG = LogFactory.getLog(Jets3tFileSystem.class);
 
+  /**
+   * File system attribute that returns a map of counters and cache statistics.
+   */
+  public static final String ATTR_STATISTICS = "statistics";
+  /**
+   * File system attribute that marks the beginning of a request of the given type for
+   * the current thread. Setting it to null ends the request. Metadata changes made
+   * during a request are written when it ends.
+   */
+  public static final String ATTR_REQUEST = "request";
+
+  /**
+   * File system attribute that announces the length of the request body of the current
+   * thread. Knowing the length in advance allows to stream the content of a PUT to S3
+   * instead of spooling it to disk first.
+   */
+  public static final String ATTR_REQUEST_CONTENT_LENGTH = "request.contentLength";
+
+  /**
+   * File system attribute that returns the channel of the local file the content opened
+   * last by the current thread is read from, or null if it is read from memory or S3.
+   * Reading the attribute clears it. The channel belongs to the content stream and is
+   * closed with it.
+   */
+  public static final String ATTR_REQUEST_CONTENT_CHANNEL = "request.contentChannel";
+
+  private static final String NO_REQUEST = "none";
+  private static final int NOT_MODIFIED = 304;
+  private static final int NOT_FOUND = 404;
+
   private S3Service service;
   private S3Bucket bucket;
+  private ContentCache contentCache;
+  private BlockCache blockCache;
+  private SlabCache slabCache;
+  private ExpiringCache<Details> metadataCache;
+  private ExpiringCache<Boolean> negativeCache;
+  private int batchWorkers;
+  private int batchRetries;
+  private int listPageSize;
+  private int uploadChunkSize;
+  private int uploadQueueLength;
+  private ResilientCaller caller;
+  private final Date started = new Date();
+  private final SingleFlight<Details> detailsFlights = new SingleFlight<Details>();
+  private final SingleFlight<CacheFill> contentFlights = new SingleFlight<CacheFill>();
+  private final SingleFlight<byte[]> smallContentFlights = new SingleFlight<byte[]>();
+  private WriteBehindQueue writeBehindQueue = null;
+  private BucketScanner scanner = null;
+  private ScheduledExecutorService scheduler = null;
+
+  private final ConcurrentMap<String, CacheFill> contentFills = new ConcurrentHashMap<String, CacheFill>();
+  private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, String.format("s3-%s-worker", bucket.getName()));
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  private final ThreadLocal<String> currentRequest = new ThreadLocal<String>();
+  private final ThreadLocal<Long> requestContentLength = new ThreadLocal<Long>();
+  private final ThreadLocal<FileChannel> requestContentChannel = new ThreadLocal<FileChannel>();
+  private final ThreadLocal<Set<Jets3tFileObject>> changedMetadata = new ThreadLocal<Set<Jets3tFileObject>>();
+  private final Map<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
 
 
   public Jets3tFileSystem(S3Service service, S3FileName fileName, FileSystemOptions fileSystemOptions) throws FileSystemException {
@@ -59,6 +154,58 @@ public class Jets3tFileSystem extends AbstractFileSystem {
     } catch (S3ServiceException e) {
       throw new FileSystemException(e);
     }
+
+    S3FileSystemConfigBuilder config = S3FileSystemConfigBuilder.getInstance();
+    try {
+      File cacheDirectory = config.getCacheDirectory(fileSystemOptions, bucket.getName());
+      contentCache = new ContentCache(cacheDirectory, config.getCacheSize(fileSystemOptions));
+      blockCache = new BlockCache(new File(cacheDirectory, "blocks"), config.getBlockSize(fileSystemOptions),
+                                  config.getBlockCacheSize(fileSystemOptions));
+      slabCache = new SlabCache(config.getSlabCacheSize(fileSystemOptions), config.getSlabEntrySize(fileSystemOptions));
+      if (config.isWriteBehind(fileSystemOptions)) {
+        writeBehindQueue = new WriteBehindQueue(this, service, bucket, new File(cacheDirectory, "journal"));
+      }
+    } catch (IOException e) {
+      throw new FileSystemException("can't create content cache", e);
+    }
+    metadataCache = new ExpiringCache<Details>(config.getMetadataCacheTtl(fileSystemOptions),
+                                               config.getMetadataCacheSize(fileSystemOptions));
+    negativeCache = new ExpiringCache<Boolean>(config.getNegativeCacheTtl(fileSystemOptions),
+                                               config.getNegativeCacheSize(fileSystemOptions));
+    batchWorkers = config.getBatchWorkers(fileSystemOptions);
+    batchRetries = config.getBatchRetries(fileSystemOptions);
+    listPageSize = config.getListPageSize(fileSystemOptions);
+    uploadChunkSize = Math.max(1, config.getUploadChunkSize(fileSystemOptions));
+    uploadQueueLength = Math.max(1, config.getUploadQueueLength(fileSystemOptions));
+    caller = new ResilientCaller(this, config.getOperationRetries(fileSystemOptions),
+                                 config.isHedging(fileSystemOptions));
+    if (null != writeBehindQueue) {
+      writeBehindQueue.start(executor, config.getWriteBehindWorkers(fileSystemOptions));
+    }
+    long scanInterval = config.getScanInterval(fileSystemOptions);
+    if (scanInterval > 0) {
+      scanner = new BucketScanner(this, service, bucket.getName(), config.getScanPrefixes(fileSystemOptions),
+                                  config.getScanRate(fileSystemOptions));
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, String.format("s3-%s-scanner", bucket.getName()));
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      scheduler.scheduleWithFixedDelay(scanner, scanInterval, scanInterval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public void close() {
+    if (null != scheduler) {
+      scheduler.shutdownNow();
+    }
+    if (null != writeBehindQueue) {
+      writeBehindQueue.close();
+    }
+    executor.shutdown();
+    super.close();
   }
 
   public void destroyFileSystem() throws FileSystemException {
@@ -79,5 +226,848 @@ public class Jets3tFileSystem extends AbstractFileSystem {
     return new Jets3tFileObject(fileName, this, service, bucket);
   }
 
+  /**
+   * Get a file system attribute. The S3 file system supports the statistics attribute
+   * to expose the state of its caches and the content channel of the current request.
+   *
+   * @param attrName the attribute name
+   * @return the attribute value
+   * @throws FileSystemException if the attribute is not supported
+   */
+  public Object getAttribute(String attrName) throws FileSystemException {
+    if (ATTR_STATISTICS.equals(attrName)) {
+      return getStatistics();
+    }
+    if (ATTR_REQUEST_CONTENT_CHANNEL.equals(attrName)) {
+      FileChannel channel = requestContentChannel.get();
+      requestContentChannel.remove();
+      return channel;
+    }
+    return super.getAttribute(attrName);
+  }
+
+  /**
+   * Set a file system attribute. The S3 file system supports the request attribute to
+   * track the type of request the current thread is working on.
+   *
+   * @param attrName the attribute name
+   * @param value    the attribute value
+   * @throws FileSystemException if the attribute is not supported
+   */
+  public void setAttribute(String attrName, Object value) throws FileSystemException {
+    if (ATTR_REQUEST.equals(attrName)) {
+      if (null != value) {
+        currentRequest.set(value.toString());
+        changedMetadata.set(new LinkedHashSet<Jets3tFileObject>());
+      } else {
+        try {
+          flushMetadata();
+        } catch (FileSystemException e) {
+          LOG.error(String.format("can't write metadata at the end of the request: %s", e.getMessage()));
+        }
+        changedMetadata.remove();
+        currentRequest.remove();
+        requestContentLength.remove();
+        requestContentChannel.remove();
+      }
+      return;
+    }
+    if (ATTR_REQUEST_CONTENT_LENGTH.equals(attrName)) {
+      if (null != value) {
+        requestContentLength.set(((Number) value).longValue());
+      } else {
+        requestContentLength.remove();
+      }
+      return;
+    }
+    super.setAttribute(attrName, value);
+  }
+
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new TreeMap<String, Object>();
+    if (service instanceof MeteredRestS3Service) {
+      statistics.putAll(((MeteredRestS3Service) service).getStatistics());
+    }
+    for (Map.Entry<String, AtomicLong> counter : counters.entrySet()) {
+      statistics.put(counter.getKey(), counter.getValue().get());
+    }
+    statistics.put("singleflight.head.shared", detailsFlights.getSharedCount());
+    statistics.put("singleflight.get.shared",
+                   contentFlights.getSharedCount() + smallContentFlights.getSharedCount());
+    statistics.put("metadata.entries", metadataCache.size());
+    statistics.put("metadata.hits", metadataCache.getHitCount());
+    statistics.put("metadata.misses", metadataCache.getMissCount());
+    statistics.put("metadata.evictions", metadataCache.getEvictionCount());
+    statistics.put("metadata.expirations", metadataCache.getExpirationCount());
+    statistics.put("negative.entries", negativeCache.size());
+    statistics.put("negative.hits", negativeCache.getHitCount());
+    statistics.put("negative.misses", negativeCache.getMissCount());
+    statistics.put("negative.evictions", negativeCache.getEvictionCount());
+    statistics.put("negative.expirations", negativeCache.getExpirationCount());
+    statistics.put("content.size", contentCache.getSize());
+    statistics.put("content.maxsize", contentCache.getMaxSize());
+    statistics.put("content.hits", contentCache.getHitCount());
+    statistics.put("content.misses", contentCache.getMissCount());
+    statistics.put("content.evictions", contentCache.getEvictionCount());
+    statistics.put("content.fills", contentFills.size());
+    statistics.put("blocks.size", blockCache.getSize());
+    statistics.put("blocks.maxsize", blockCache.getMaxSize());
+    statistics.put("blocks.hits", blockCache.getHitCount());
+    statistics.put("blocks.misses", blockCache.getMissCount());
+    statistics.put("blocks.evictions", blockCache.getEvictionCount());
+    statistics.put("slab.size", slabCache.getSize());
+    statistics.put("slab.maxsize", slabCache.getMaxSize());
+    statistics.put("slab.hits", slabCache.getHitCount());
+    statistics.put("slab.misses", slabCache.getMissCount());
+    statistics.put("slab.evictions", slabCache.getEvictionCount());
+    if (null != writeBehindQueue) {
+      statistics.put("writebehind.pending", writeBehindQueue.getPendingCount());
+      statistics.put("writebehind.uploads", writeBehindQueue.getUploadCount());
+      statistics.put("writebehind.superseded", writeBehindQueue.getSupersededCount());
+      statistics.put("writebehind.failures", writeBehindQueue.getFailureCount());
+      statistics.put("writebehind.abandoned", writeBehindQueue.getAbandonedCount());
+    }
+    if (null != scanner) {
+      statistics.putAll(scanner.getStatistics());
+    }
+    return statistics;
+  }
+
+  ContentCache getContentCache() {
+    return contentCache;
+  }
+
+  BlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  SlabCache getSlabCache() {
+    return slabCache;
+  }
+
+  /**
+   * Find a running cache fill for an object version.
+   *
+   * @param key  the S3 key
+   * @param eTag the ETag of the object version
+   * @return the cache fill or null if there is none
+   */
+  CacheFill getContentFill(String key, String eTag) {
+    return null == eTag ? null : contentFills.get(key + "\n" + eTag);
+  }
+
+  /**
+   * Start copying the content of an object into the content cache. If the same
+   * object version is already being copied, the content of the given object is
+   * discarded and the running fill is returned.
+   *
+   * @param object the object including its content
+   * @return the cache fill to read the content from
+   * @throws IOException if the content cannot be cached
+   */
+  CacheFill startContentFill(S3Object object) throws IOException {
+    InputStream content;
+    try {
+      content = object.getDataInputStream();
+    } catch (S3ServiceException e) {
+      IOException ioe = new IOException(String.format("can't read content of '%s'", object.getKey()));
+      ioe.initCause(e);
+      throw ioe;
+    }
+
+    final String key = object.getKey();
+    final String eTag = object.getETag();
+    final long length = object.getContentLength();
+    final String id = key + "\n" + eTag;
+    final CacheFill fill = new CacheFill(contentCache, key, eTag, length, content, new CacheFill.RangeSource() {
+      public InputStream open(final long position) throws IOException {
+        if (null == eTag) {
+          throw new IOException(String.format("unknown version of '%s'", key));
+        }
+        count("get.resume");
+        try {
+          // only the same object version continues the content
+          S3Object rest = caller.call("get.resume", false, new ResilientCaller.Request<S3Object>() {
+            S3Object execute() throws S3ServiceException {
+              return service.getObject(bucket, key, null, null, new String[]{eTag}, null, position, length - 1);
+            }
+          });
+          return rest.getDataInputStream();
+        } catch (S3ServiceException e) {
+          IOException ioe = new IOException(String.format("can't read '%s' from byte %d", key, position));
+          ioe.initCause(e);
+          throw ioe;
+        }
+      }
+    });
+    CacheFill running = contentFills.putIfAbsent(id, fill);
+    if (null != running) {
+      content.close();
+      return running;
+    }
+
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          fill.run();
+        } finally {
+          contentFills.remove(id);
+        }
+      }
+    });
+    return fill;
+  }
+
+  /**
+   * Get the object details, either from the metadata cache or using a HEAD request.
+   * Keys that were not found are remembered for a short time in the negative cache.
+   * Details taken from a listing lack the user metadata and are only returned if
+   * the caller does not need complete details. The returned object is a copy and may
+   * be modified by the caller.
+   *
+   * @param key      the S3 key
+   * @param complete true if the user metadata is required
+   * @return the object details or null if the object does not exist
+   * @throws S3ServiceException if the request fails
+   */
+  Details getObjectDetails(final String key, boolean complete) throws S3ServiceException {
+    if (null != writeBehindQueue) {
+      // the object as written, even if it has not been uploaded yet
+      S3Object pending = writeBehindQueue.getPendingDetails(key);
+      if (null != pending) {
+        return new Details(pending, true);
+      }
+    }
+    Details cached = metadataCache.get(key);
+    if (null != cached && (cached.complete || !complete)) {
+      count("head.saved");
+      return new Details(copyDetails(cached.object), cached.complete, cached.implicit);
+    }
+    if (null != negativeCache.get(key)) {
+      count("head.saved.missing");
+      return null;
+    }
+
+    // concurrent requests for the same object share one HEAD
+    Details details;
+    try {
+      details = detailsFlights.run(key, new Callable<Details>() {
+        public Details call() throws Exception {
+          return fetchObjectDetails(key);
+        }
+      });
+    } catch (S3ServiceException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new S3ServiceException(String.format("can't get details of '%s'", key), e);
+    }
+    // each caller gets its own copy to change
+    return null == details ? null : new Details(copyDetails(details.object), details.complete, details.implicit);
+  }
+
+  /**
+   * Get the details of an object from S3 and cache them. A missing object may still be
+   * an implicit folder.
+   *
+   * @param key the S3 key
+   * @return the details or null if the object does not exist
+   * @throws S3ServiceException if the details cannot be read
+   */
+  private Details fetchObjectDetails(final String key) throws S3ServiceException {
+    count("head");
+    try {
+      S3Object object = caller.call("head", true, new ResilientCaller.Request<S3Object>() {
+        S3Object execute() throws S3ServiceException {
+          return service.getObjectDetails(bucket, key);
+        }
+      });
+      metadataCache.put(key, new Details(copyDetails(object), true));
+      return new Details(object, true);
+    } catch (S3ServiceException e) {
+      if (e.getResponseCode() != NOT_FOUND) {
+        throw e;
+      }
+    }
+
+    if (!"".equals(key) && hasChildren(key)) {
+      return new Details(putImplicitFolder(key), true, true);
+    }
+    negativeCache.put(key, Boolean.TRUE);
+    return null;
+  }
+
+  /**
+   * Get the content of an object version as it is copied into the content cache. If
+   * the version is already being copied, or another thread is requesting the same
+   * object, their copy is shared, so concurrent readers cause a single download.
+   *
+   * @param key    the S3 key
+   * @param eTag   the ETag of the version the caller knows, may be null
+   * @param hedged true if the GET may be hedged
+   * @return the cache fill to read the content from
+   * @throws IOException if the content cannot be read
+   */
+  CacheFill fetchContent(final String key, final String eTag, final boolean hedged) throws IOException {
+    CacheFill fill = getContentFill(key, eTag);
+    if (null != fill) {
+      return fill;
+    }
+    try {
+      return contentFlights.run(key, new Callable<CacheFill>() {
+        public CacheFill call() throws Exception {
+          CacheFill running = getContentFill(key, eTag);
+          if (null != running) {
+            return running;
+          }
+          count("get");
+          S3Object fetchedObject = caller.call("get", hedged, new ResilientCaller.Request<S3Object>() {
+            S3Object execute() throws S3ServiceException {
+              return service.getObject(bucket, key);
+            }
+
+            void discard(S3Object result) {
+              try {
+                result.closeDataInputStream();
+              } catch (IOException e) {
+                LOG.debug(String.format("can't close unused content of '%s': %s", key, e.getMessage()));
+              }
+            }
+          });
+          if (null == eTag || !eTag.equals(fetchedObject.getETag())) {
+            // the object changed since the caller attached it
+            invalidate(key);
+          }
+          return startContentFill(fetchedObject);
+        }
+      });
+    } catch (IOException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      IOException ioe = new IOException(String.format("can't read content of '%s'", key));
+      ioe.initCause(e);
+      throw ioe;
+    }
+  }
+
+  /**
+   * Make sure the cached content of an object version is still current. As long as the
+   * metadata cache confirms the version nothing needs to be done, afterwards S3 is asked
+   * with a conditional GET. If the object did not change, the answer is a short 304 and
+   * the version is confirmed in the metadata cache again. Otherwise the answer already
+   * carries the new content.
+   *
+   * @param current  the details of the version whose content is cached
+   * @param complete true if the details include the user metadata
+   * @return null if the version is current or the changed object including its content
+   * @throws IOException if S3 can not be asked or the object is gone
+   */
+  S3Object revalidate(S3Object current, boolean complete) throws IOException {
+    final String key = current.getKey();
+    final String eTag = current.getETag();
+    Details cached = metadataCache.peek(key);
+    if (null == eTag || (null != cached && eTag.equals(cached.object.getETag()))) {
+      return null;
+    }
+
+    count("get.revalidate");
+    try {
+      S3Object changed = caller.call("get.revalidate", false, new ResilientCaller.Request<S3Object>() {
+        S3Object execute() throws S3ServiceException {
+          return service.getObject(bucket, key, null, null, null, new String[]{eTag}, null, null);
+        }
+      });
+      LOG.debug(String.format("cached content of '%s' is outdated (%s, now %s)", key, eTag, changed.getETag()));
+      count("get.revalidate.changed");
+      metadataCache.put(key, new Details(copyDetails(changed), true));
+      negativeCache.remove(key);
+      return changed;
+    } catch (S3ServiceException e) {
+      if (e.getResponseCode() == NOT_MODIFIED) {
+        metadataCache.put(key, new Details(copyDetails(current), complete));
+        return null;
+      }
+      invalidate(key);
+      IOException ioe = new IOException(String.format("can't revalidate content of '%s'", key));
+      ioe.initCause(e);
+      throw ioe;
+    }
+  }
+
+  /**
+   * Get the content of a small object version and keep it in the slab cache. Other
+   * than {@link #fetchContent(String, String, boolean)} the content is read completely
+   * before it is returned, no cache file is involved. Concurrent requests for the same
+   * object share a single download.
+   *
+   * @param key    the S3 key
+   * @param eTag   the ETag of the version the caller knows, may be null
+   * @param hedged true if the GET may be hedged
+   * @return the content or null if the object has grown too large for the slab cache
+   * @throws IOException if the content cannot be read
+   */
+  byte[] fetchSmallContent(final String key, final String eTag, final boolean hedged) throws IOException {
+    try {
+      return smallContentFlights.run(key, new Callable<byte[]>() {
+        public byte[] call() throws Exception {
+          count("get");
+          S3Object fetchedObject = caller.call("get", hedged, new ResilientCaller.Request<S3Object>() {
+            S3Object execute() throws S3ServiceException {
+              return service.getObject(bucket, key);
+            }
+
+            void discard(S3Object result) {
+              try {
+                result.closeDataInputStream();
+              } catch (IOException e) {
+                LOG.debug(String.format("can't close unused content of '%s': %s", key, e.getMessage()));
+              }
+            }
+          });
+          if (null == eTag || !eTag.equals(fetchedObject.getETag())) {
+            // the object changed since the caller attached it
+            invalidate(key);
+          }
+          if (!slabCache.accepts(fetchedObject.getContentLength())) {
+            fetchedObject.closeDataInputStream();
+            return null;
+          }
+          byte[] content = readContent(fetchedObject.getDataInputStream(), (int) fetchedObject.getContentLength());
+          slabCache.put(key, fetchedObject.getETag(), content);
+          return content;
+        }
+      });
+    } catch (IOException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      IOException ioe = new IOException(String.format("can't read content of '%s'", key));
+      ioe.initCause(e);
+      throw ioe;
+    }
+  }
+
+  /**
+   * Read a content stream completely and close it.
+   *
+   * @param is     the content stream
+   * @param length the content length
+   * @return the content
+   * @throws IOException if the stream ends early or reading fails
+   */
+  static byte[] readContent(InputStream is, int length) throws IOException {
+    try {
+      byte[] content = new byte[length];
+      new DataInputStream(is).readFully(content);
+      return content;
+    } finally {
+      is.close();
+    }
+  }
+
+  /**
+   * Check whether there are keys below a key, which makes it a folder even without an
+   * object of its own.
+   *
+   * @param key the S3 key
+   * @return true if at least one key starts with the key and a slash
+   * @throws S3ServiceException if the listing fails
+   */
+  private boolean hasChildren(final String key) throws S3ServiceException {
+    count("list.implicit");
+    S3ObjectsChunk chunk = caller.call("list", false, new ResilientCaller.Request<S3ObjectsChunk>() {
+      S3ObjectsChunk execute() throws S3ServiceException {
+        return service.listObjectsChunked(bucket.getName(), key + "/", "/", 1, null);
+      }
+    });
+    return (null != chunk.getObjects() && chunk.getObjects().length > 0) ||
+           (null != chunk.getCommonPrefixes() && chunk.getCommonPrefixes().length > 0);
+  }
+
+  /**
+   * Remember a folder that has no object of its own, because it only exists as the
+   * prefix of other keys.
+   *
+   * @param key the folder key
+   * @return the details of the folder
+   */
+  S3Object putImplicitFolder(String key) {
+    S3Object folder = new S3Object(bucket, key);
+    folder.setContentType(Mimetypes.MIMETYPE_JETS3T_DIRECTORY);
+    folder.setContentLength(0);
+    // there is no modification time, take one that does not change with every listing
+    folder.setLastModifiedDate(started);
+    metadataCache.put(key, new Details(copyDetails(folder), true, true));
+    negativeCache.remove(key);
+    return folder;
+  }
+
+  /**
+   * Remember the details of an object found in a listing. The listing contains size,
+   * last modification date and ETag but no user metadata, so complete details of the
+   * same object version are kept.
+   *
+   * @param object the listed object with its content type set
+   */
+  void putListedDetails(S3Object object) {
+    String key = object.getKey();
+    Details cached = metadataCache.peek(key);
+    if (null == cached || !cached.complete || null == object.getETag() ||
+        !object.getETag().equals(cached.object.getETag())) {
+      metadataCache.put(key, new Details(copyDetails(object), false));
+      negativeCache.remove(key);
+    }
+  }
+
+  /**
+   * Get the keys of all objects with cached details below a prefix.
+   *
+   * @param prefix the key prefix
+   * @return the keys
+   */
+  Set<String> getCachedKeys(String prefix) {
+    return metadataCache.getKeys(prefix);
+  }
+
+  /**
+   * Compare an object found by the bucket scanner with what we know about it. If it has
+   * changed, or it exists although we remember it as missing, its details and content
+   * are removed from the caches.
+   *
+   * @param listed the listed object
+   * @return true if cached entries have been invalidated
+   */
+  boolean checkListed(S3Object listed) {
+    String key = listed.getKey();
+    boolean changed = null != negativeCache.peek(key);
+    Details cached = metadataCache.peek(key);
+    if (null != cached && !cached.implicit) {
+      String eTag = cached.object.getETag();
+      changed |= null == eTag || !eTag.equals(listed.getETag()) ||
+                 cached.object.getContentLength() != listed.getContentLength();
+    }
+    if (changed) {
+      LOG.debug(String.format("'%s' has been changed by someone else", key));
+      forget(key);
+    }
+    return changed;
+  }
+
+  /**
+   * Forget an object the bucket scanner did not find anymore. Implicit folders and
+   * objects waiting for their upload are not in the listing, they are kept.
+   *
+   * @param key the S3 key
+   * @return true if cached entries have been invalidated
+   */
+  boolean checkDeleted(String key) {
+    Details cached = metadataCache.peek(key);
+    if (null == cached || cached.implicit || "".equals(key) ||
+        (null != writeBehindQueue && null != writeBehindQueue.getPendingDetails(key))) {
+      return false;
+    }
+    LOG.debug(String.format("'%s' has been deleted by someone else", key));
+    forget(key);
+    return true;
+  }
+
+  private void forget(String key) {
+    invalidate(key);
+    contentCache.remove(key);
+    blockCache.remove(key);
+    slabCache.remove(key);
+  }
+
+  /**
+   * Forget what we know about an object after it has been changed, created or deleted.
+   *
+   * @param key the S3 key
+   */
+  void invalidate(String key) {
+    metadataCache.remove(key);
+    negativeCache.remove(key);
+  }
+
+  /**
+   * Forget what we know about all objects below a folder.
+   *
+   * @param prefix the key prefix of the folder including the trailing slash
+   */
+  void invalidateAll(String prefix) {
+    metadataCache.removeByPrefix(prefix);
+    negativeCache.removeByPrefix(prefix);
+  }
+
+  /**
+   * Remember where the content the current thread just opened is read from. Outside of
+   * a request nobody asks, so nothing is remembered.
+   *
+   * @param channel the channel of the local content file or null if it is not read from a file
+   */
+  void setRequestContentChannel(FileChannel channel) {
+    if (null != currentRequest.get()) {
+      requestContentChannel.set(channel);
+    }
+  }
+
+  /**
+   * Take the announced length of the request body of the current thread. The length
+   * applies to one output stream only and is forgotten once it has been taken.
+   *
+   * @return the content length or -1 if it is unknown
+   */
+  long takeRequestContentLength() {
+    Long length = requestContentLength.get();
+    requestContentLength.remove();
+    return null == length ? -1 : length;
+  }
+
+  ExecutorService getExecutor() {
+    return executor;
+  }
+
+  WriteBehindQueue getWriteBehindQueue() {
+    return writeBehindQueue;
+  }
+
+  /**
+   * Called by the write-behind queue once an object has been uploaded.
+   *
+   * @param key         the S3 key
+   * @param eTag        the ETag of the uploaded object
+   * @param contentFile the uploaded content, to be moved into the content cache, or null
+   */
+  void uploaded(String key, String eTag, File contentFile) {
+    invalidate(key);
+    blockCache.remove(key);
+    slabCache.remove(key);
+    if (null != contentFile) {
+      try {
+        if (null != eTag && slabCache.accepts(contentFile.length())) {
+          slabCache.put(key, eTag, readContent(new FileInputStream(contentFile), (int) contentFile.length()));
+          contentFile.delete();
+        } else if (null != eTag && contentFile.length() <= contentCache.getMaxSize()) {
+          contentCache.put(key, eTag, contentFile);
+        } else {
+          contentFile.delete();
+        }
+      } catch (IOException e) {
+        LOG.warn(String.format("can't cache uploaded content of '%s': %s", key, e.getMessage()));
+      }
+    }
+  }
+
+  /**
+   * Wait until the pending background upload of an object is done, so operations on S3
+   * see its content.
+   *
+   * @param key the S3 key
+   * @throws FileSystemException if waiting is interrupted
+   */
+  void awaitUpload(String key) throws FileSystemException {
+    if (null != writeBehindQueue) {
+      try {
+        writeBehindQueue.await(key);
+      } catch (IOException e) {
+        throw new FileSystemException(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Wait until the pending background uploads of all keys starting with the prefix are
+   * done, so operations on S3 see their content.
+   *
+   * @param prefix the key prefix
+   * @throws FileSystemException if waiting is interrupted
+   */
+  void awaitUploads(String prefix) throws FileSystemException {
+    if (null != writeBehindQueue) {
+      try {
+        writeBehindQueue.awaitAll(prefix);
+      } catch (IOException e) {
+        throw new FileSystemException(e.getMessage(), e);
+      }
+    }
+  }
+
+  /**
+   * Remember a file whose metadata has been changed, to write all changes of the current
+   * request in one update when it ends. Outside of a request changes are not deferred.
+   *
+   * @param file the changed file
+   * @return true if the update is deferred, false if it has to be written right away
+   */
+  boolean deferMetadata(Jets3tFileObject file) {
+    Set<Jets3tFileObject> changed = changedMetadata.get();
+    if (null == changed) {
+      return false;
+    }
+    changed.add(file);
+    return true;
+  }
+
+  /**
+   * Write the deferred metadata changes of the current thread. Each changed file is
+   * written, even if writing another one fails.
+   *
+   * @throws FileSystemException if the metadata of a file cannot be written
+   */
+  void flushMetadata() throws FileSystemException {
+    Set<Jets3tFileObject> changed = changedMetadata.get();
+    if (null == changed || changed.isEmpty()) {
+      return;
+    }
+    List<Jets3tFileObject> files = new ArrayList<Jets3tFileObject>(changed);
+    changed.clear();
+    FileSystemException failure = null;
+    for (Jets3tFileObject file : files) {
+      try {
+        file.flushMetadata();
+      } catch (FileSystemException e) {
+        LOG.warn(String.format("can't write metadata of '%s': %s", file.getName().getPath(), e.getMessage()));
+        failure = e;
+      }
+    }
+    if (null != failure) {
+      throw failure;
+    }
+  }
+
+  /**
+   * Get an executor for work done on behalf of the request of the current thread. The
+   * tasks are counted for the same request type.
+   *
+   * @return the executor
+   */
+  Executor getRequestExecutor() {
+    final String request = currentRequest.get();
+    return new Executor() {
+      public void execute(final Runnable command) {
+        executor.execute(new Runnable() {
+          public void run() {
+            currentRequest.set(request);
+            try {
+              command.run();
+            } finally {
+              currentRequest.remove();
+            }
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * Run an operation for many items in parallel, using the configured number of workers
+   * and retries.
+   *
+   * @param operation   the operation
+   * @param items       the items
+   * @param description what is done, for the error message
+   * @throws FileSystemException if the operation failed for some of the items
+   */
+  <T> void runBatch(BatchOperation<T> operation, Collection<T> items, String description)
+          throws FileSystemException {
+    BatchOperation.Result<T> result;
+    try {
+      result = operation.run(items);
+    } catch (InterruptedException e) {
+      throw new FileSystemException(String.format("interrupted while trying to %s", description), e);
+    }
+    LOG.debug(String.format("%s: %s", description, result));
+    if (result.hasFailures()) {
+      Map.Entry<T, Exception> first = result.getFailures().entrySet().iterator().next();
+      throw new FileSystemException(String.format("can't %s, %d of %d failed (first '%s')", description,
+                                                  result.getFailures().size(), items.size(), first.getKey()),
+                                    first.getValue());
+    }
+  }
+
+  int getBatchWorkers() {
+    return batchWorkers;
+  }
+
+  int getBatchRetries() {
+    return batchRetries;
+  }
+
+  int getListPageSize() {
+    return listPageSize;
+  }
+
+  int getUploadChunkSize() {
+    return uploadChunkSize;
+  }
+
+  int getUploadQueueLength() {
+    return uploadQueueLength;
+  }
+
+  /**
+   * Get the caller for reading S3 operations, which retries and hedges them.
+   *
+   * @return the caller
+   */
+  ResilientCaller getCaller() {
+    return caller;
+  }
+
+  /**
+   * Count an event for the type of request the current thread works on.
+   *
+   * @param name the counter name
+   */
+  void count(String name) {
+    String request = currentRequest.get();
+    String counterName = String.format("request.%s.%s", null == request ? NO_REQUEST : request, name);
+    AtomicLong counter = counters.get(counterName);
+    if (null == counter) {
+      synchronized (counters) {
+        counter = counters.get(counterName);
+        if (null == counter) {
+          counter = new AtomicLong();
+          counters.put(counterName, counter);
+        }
+      }
+    }
+    counter.incrementAndGet();
+  }
+
+  /**
+   * Object details as kept in the metadata cache.
+   */
+  static class Details {
+    final S3Object object;
+    final boolean complete;
+    final boolean implicit;
+
+    Details(S3Object object, boolean complete) {
+      this(object, complete, false);
+    }
+
+    Details(S3Object object, boolean complete, boolean implicit) {
+      this.object = object;
+      this.complete = complete;
+      this.implicit = implicit;
+    }
+  }
+
+  /**
+   * Copy the details of an object, leaving out its content.
+   *
+   * @param object the object
+   * @return a new object with the same key and metadata
+   */
+  @SuppressWarnings({"unchecked"})
+  S3Object copyDetails(S3Object object) {
+    S3Object copy = new S3Object(bucket, object.getKey());
+    copy.addAllMetadata(object.getMetadataMap());
+    return copy;
+  }
 
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import com.thinkberg.vfs.s3.cache.BlockCache;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.vfs.provider.AbstractRandomAccessStreamContent;
+import org.apache.commons.vfs.util.RandomAccessMode;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * Random access to the content of an S3 object. If the content is cached it is read
+ * from memory or the cache file. Otherwise the content is read in blocks kept in the block cache,
+ * each missing block is fetched with one ranged GET request. The requests are
+ * conditional on the ETag of the object, a changed object makes reading fail instead
+ * of mixing content of different versions.
+ *
+ * @author Matthias L. Jugel
+ */
+class Jets3tRandomAccessContent extends AbstractRandomAccessStreamContent {
+  private static final Log LOG = LogFactory.getLog(Jets3tRandomAccessContent.class);
+
+  private final Jets3tFileSystem fileSystem;
+  private final S3Service service;
+  private final S3Bucket bucket;
+  private final BlockCache blockCache;
+  private final String key;
+  private final String eTag;
+  private final long length;
+  private final long blockSize;
+
+  private final DataInputStream dataInputStream;
+  private RandomAccessFile cacheFile;
+  private InputStream memoryContent;
+
+  private long filePointer = 0;
+  private RandomAccessFile block = null;
+  private long blockIndex = -1;
+
+  Jets3tRandomAccessContent(Jets3tFileSystem fileSystem, S3Service service, S3Bucket bucket, S3Object object,
+                            File cachedContent, InputStream memoryContent, BlockCache blockCache, RandomAccessMode mode)
+          throws IOException {
+    super(mode);
+    this.fileSystem = fileSystem;
+    this.service = service;
+    this.bucket = bucket;
+    this.blockCache = blockCache;
+    this.key = object.getKey();
+    this.eTag = object.getETag();
+    this.length = object.getContentLength();
+    this.blockSize = blockCache.getBlockSize();
+
+    if (null != cachedContent) {
+      cacheFile = new RandomAccessFile(cachedContent, "r");
+    }
+    this.memoryContent = memoryContent;
+    dataInputStream = new DataInputStream(new ContentInputStream());
+  }
+
+  protected DataInputStream getDataInputStream() throws IOException {
+    return dataInputStream;
+  }
+
+  public long getFilePointer() throws IOException {
+    return filePointer;
+  }
+
+  public void seek(long pos) throws IOException {
+    if (pos < 0) {
+      throw new IOException(String.format("can't seek to negative position %d", pos));
+    }
+    filePointer = pos;
+  }
+
+  public long length() throws IOException {
+    return length;
+  }
+
+  public void close() throws IOException {
+    closeBlock();
+    if (null != cacheFile) {
+      cacheFile.close();
+      cacheFile = null;
+    }
+    if (null != memoryContent) {
+      memoryContent.close();
+      memoryContent = null;
+    }
+  }
+
+  /**
+   * Open the block containing the current file pointer, loading it if necessary.
+   *
+   * @throws IOException if the block cannot be loaded
+   */
+  private void openBlock() throws IOException {
+    long index = filePointer / blockSize;
+    if (index == blockIndex && null != block) {
+      return;
+    }
+    closeBlock();
+    File file = blockCache.getBlock(key, eTag, index, new BlockCache.BlockLoader() {
+      public void load(long index, File file) throws IOException {
+        loadBlock(index, file);
+      }
+    });
+    block = new RandomAccessFile(file, "r");
+    blockIndex = index;
+  }
+
+  private void closeBlock() throws IOException {
+    if (null != block) {
+      RandomAccessFile file = block;
+      block = null;
+      blockIndex = -1;
+      file.close();
+    }
+  }
+
+  private void loadBlock(long index, File file) throws IOException {
+    long start = index * blockSize;
+    long end = Math.min(length, start + blockSize) - 1;
+    LOG.debug(String.format("loading block %d of '%s' [%d-%d]", index, key, start, end));
+    try {
+      final long first = start;
+      final long last = end;
+      S3Object object = fileSystem.getCaller().call("get.block", false, new ResilientCaller.Request<S3Object>() {
+        S3Object execute() throws S3ServiceException {
+          return service.getObject(bucket, key, null, null, new String[]{eTag}, null, first, last);
+        }
+      });
+      fileSystem.count("get.block");
+      InputStream is = object.getDataInputStream();
+      FileOutputStream os = new FileOutputStream(file);
+      try {
+        byte[] buffer = new byte[64 * 1024];
+        long remaining = end - start + 1;
+        while (remaining > 0) {
+          int count = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+          if (count == -1) {
+            throw new EOFException(String.format("premature end of block %d of '%s'", index, key));
+          }
+          os.write(buffer, 0, count);
+          remaining -= count;
+        }
+      } finally {
+        os.close();
+        is.close();
+      }
+    } catch (S3ServiceException e) {
+      IOException ioe = new IOException(String.format("can't read block %d of '%s'", index, key));
+      ioe.initCause(e);
+      throw ioe;
+    }
+  }
+
+  private class ContentInputStream extends InputStream {
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (filePointer >= length) {
+        return -1;
+      }
+      if (len == 0) {
+        return 0;
+      }
+
+      int count;
+      if (null != memoryContent) {
+        memoryContent.reset();
+        memoryContent.skip(filePointer);
+        count = memoryContent.read(b, off, (int) Math.min(len, length - filePointer));
+      } else if (null != cacheFile) {
+        cacheFile.seek(filePointer);
+        count = cacheFile.read(b, off, (int) Math.min(len, length - filePointer));
+      } else {
+        openBlock();
+        long offset = filePointer - blockIndex * blockSize;
+        block.seek(offset);
+        count = block.read(b, off, (int) Math.min(len, block.length() - offset));
+      }
+      if (count == -1) {
+        throw new EOFException(String.format("premature end of content of '%s' at position %d", key, filePointer));
+      }
+
+      filePointer += count;
+      return count;
+    }
+
+    public long skip(long n) throws IOException {
+      long skipped = Math.max(0, Math.min(n, length - filePointer));
+      seek(filePointer + skipped);
+      return skipped;
+    }
+
+    public void close() throws IOException {
+      Jets3tRandomAccessContent.this.close();
+    }
+  }
+}
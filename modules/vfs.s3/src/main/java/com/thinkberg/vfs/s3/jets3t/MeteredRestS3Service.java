@@ -0,0 +1,162 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.jets3t.service.Jets3tProperties;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.security.AWSCredentials;
+
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A REST S3 service that keeps track of the requests it sends. The number of requests
+ * being sent at the same time, compared to the size of the connection pool, shows
+ * whether the pool is a bottleneck. A request is counted from sending it until its
+ * response status arrives, reading the content of a response is not included.
+ * <p/>
+ * All requests pass an {@link AdaptiveLimiter}, which backs off when S3 answers with
+ * 503 (Slow Down) or requests time out, and lets more requests through again while
+ * S3 keeps up.
+ *
+ * @author Matthias L. Jugel
+ */
+public class MeteredRestS3Service extends RestS3Service {
+  private static final int SLOW_DOWN = 503;
+
+  private final int maxConnections;
+  private final AdaptiveLimiter limiter;
+  private final long queueTimeout;
+
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicInteger peak = new AtomicInteger();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong saturated = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * Create a new service.
+   *
+   * @param credentials    the AWS credentials
+   * @param properties     the jets3t configuration, including the connection pool settings
+   * @param maxConnections the size of the connection pool and the highest request limit
+   * @param queueTimeout   the time in milliseconds a request waits to be sent before it fails
+   * @throws S3ServiceException if the service cannot be initialized
+   */
+  public MeteredRestS3Service(AWSCredentials credentials, Jets3tProperties properties, int maxConnections,
+                              long queueTimeout)
+          throws S3ServiceException {
+    super(credentials, "moxo", null, properties);
+    this.maxConnections = maxConnections;
+    this.limiter = new AdaptiveLimiter(maxConnections / 2, 1, maxConnections);
+    this.queueTimeout = queueTimeout;
+  }
+
+  protected void performRequest(HttpMethodBase httpMethod, int expectedResponseCode) throws S3ServiceException {
+    AdaptiveLimiter.Permit permit;
+    try {
+      permit = limiter.acquire(queueTimeout);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new S3ServiceException("interrupted while waiting to send a request", e);
+    }
+    if (null == permit) {
+      failures.incrementAndGet();
+      throw new S3ServiceException(String.format("request not sent, %d requests are running already",
+                                                 limiter.getLimit()));
+    }
+
+    try {
+      performMeteredRequest(httpMethod, expectedResponseCode);
+      permit.success();
+    } catch (S3ServiceException e) {
+      if (isOverloaded(e)) {
+        permit.dropped();
+      } else {
+        permit.ignored();
+      }
+      throw e;
+    } finally {
+      // runtime exceptions
+      permit.ignored();
+    }
+  }
+
+  /**
+   * Check whether a failed request shows that S3 is overloaded: it has been throttled
+   * or it timed out.
+   *
+   * @param e the failure
+   * @return true if the request rate should be reduced
+   */
+  private boolean isOverloaded(S3ServiceException e) {
+    if (SLOW_DOWN == e.getResponseCode()) {
+      return true;
+    }
+    for (Throwable cause = e.getCause(); null != cause; cause = cause.getCause()) {
+      // socket and connection timeouts
+      if (cause instanceof InterruptedIOException) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void performMeteredRequest(HttpMethodBase httpMethod, int expectedResponseCode)
+          throws S3ServiceException {
+    int current = active.incrementAndGet();
+    requests.incrementAndGet();
+    if (current >= maxConnections) {
+      // this request had to wait for or took the last free connection
+      saturated.incrementAndGet();
+    }
+    int max;
+    while (current > (max = peak.get()) && !peak.compareAndSet(max, current)) {
+      // retry until the peak is at least the current value
+    }
+    try {
+      super.performRequest(httpMethod, expectedResponseCode);
+    } catch (S3ServiceException e) {
+      failures.incrementAndGet();
+      throw e;
+    } finally {
+      active.decrementAndGet();
+    }
+  }
+
+  /**
+   * Get the connection pool usage.
+   *
+   * @return the usage statistics, named after what they count
+   */
+  public Map<String, Object> getStatistics() {
+    Map<String, Object> statistics = new TreeMap<String, Object>();
+    statistics.put("connections.max", maxConnections);
+    statistics.put("connections.active", active.get());
+    statistics.put("connections.peak", peak.get());
+    statistics.put("connections.requests", requests.get());
+    statistics.put("connections.saturated", saturated.get());
+    statistics.put("connections.failures", failures.get());
+    statistics.putAll(limiter.getStatistics());
+    return statistics;
+  }
+}
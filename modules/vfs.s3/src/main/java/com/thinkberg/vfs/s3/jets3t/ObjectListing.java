@@ -0,0 +1,190 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import org.jets3t.service.S3ObjectsChunk;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.S3Object;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Lists the objects below a prefix page by page. Only the current page is held in
+ * memory, so even prefixes with millions of keys can be processed. While the current
+ * page is consumed, the next page is already fetched in the background.
+ *
+ * @author Matthias L. Jugel
+ */
+class ObjectListing {
+  private final Jets3tFileSystem fileSystem;
+  private final S3Service service;
+  private final Executor executor;
+  private final String bucketName;
+  private final String prefix;
+  private final String delimiter;
+  private final int pageSize;
+
+  private final Set<String> commonPrefixes = new LinkedHashSet<String>();
+
+  private S3Object[] page = null;
+  private int position = 0;
+  private FutureTask<S3ObjectsChunk> nextPage;
+  private boolean complete = false;
+
+  /**
+   * Start listing. The first page is requested right away.
+   *
+   * @param fileSystem the file system, for counting requests
+   * @param service    the S3 service
+   * @param bucketName the bucket
+   * @param prefix     the key prefix
+   * @param delimiter  the delimiter to group keys by or null to list all keys
+   * @param pageSize   the maximum number of keys per page
+   */
+  ObjectListing(Jets3tFileSystem fileSystem, S3Service service, String bucketName, String prefix,
+                String delimiter, int pageSize) {
+    this.fileSystem = fileSystem;
+    this.service = service;
+    this.executor = fileSystem.getRequestExecutor();
+    this.bucketName = bucketName;
+    this.prefix = prefix;
+    this.delimiter = delimiter;
+    this.pageSize = pageSize;
+    nextPage = fetch(null);
+  }
+
+  /**
+   * Check whether there are more objects.
+   *
+   * @return true if there is another object
+   * @throws S3ServiceException if the next page cannot be listed
+   */
+  boolean hasNext() throws S3ServiceException {
+    while (null == page || position == page.length) {
+      if (complete) {
+        return false;
+      }
+      turnPage();
+    }
+    return true;
+  }
+
+  /**
+   * Get the next object. The objects contain key, size, last modification date and ETag.
+   *
+   * @return the next object
+   * @throws S3ServiceException if the next page cannot be listed
+   */
+  S3Object next() throws S3ServiceException {
+    if (!hasNext()) {
+      throw new NoSuchElementException(String.format("no more objects below '%s'", prefix));
+    }
+    return page[position++];
+  }
+
+  /**
+   * Get the remaining objects of the current page, or of the next page if the current
+   * one has been consumed.
+   *
+   * @return the objects, an empty list if there are no more objects
+   * @throws S3ServiceException if the next page cannot be listed
+   */
+  List<S3Object> nextPage() throws S3ServiceException {
+    if (!hasNext()) {
+      return Collections.emptyList();
+    }
+    List<S3Object> objects = new ArrayList<S3Object>(Arrays.asList(page).subList(position, page.length));
+    position = page.length;
+    return objects;
+  }
+
+  /**
+   * Get the common prefixes of all pages listed so far. Only delimited listings have
+   * common prefixes.
+   *
+   * @return the common prefixes, each ending with the delimiter
+   */
+  Set<String> getCommonPrefixes() {
+    return commonPrefixes;
+  }
+
+  /**
+   * Stop listing. A page that is being prefetched is discarded.
+   */
+  void close() {
+    complete = true;
+    if (null != nextPage) {
+      nextPage.cancel(true);
+      nextPage = null;
+    }
+  }
+
+  private void turnPage() throws S3ServiceException {
+    S3ObjectsChunk chunk;
+    try {
+      chunk = nextPage.get();
+    } catch (InterruptedException e) {
+      close();
+      throw new S3ServiceException(String.format("interrupted while listing '%s'", prefix), e);
+    } catch (ExecutionException e) {
+      close();
+      if (e.getCause() instanceof S3ServiceException) {
+        throw (S3ServiceException) e.getCause();
+      }
+      throw new S3ServiceException(String.format("can't list '%s'", prefix), e.getCause());
+    }
+
+    page = chunk.getObjects();
+    position = 0;
+    if (null != chunk.getCommonPrefixes()) {
+      commonPrefixes.addAll(Arrays.asList(chunk.getCommonPrefixes()));
+    }
+    if (null == chunk.getPriorLastKey()) {
+      complete = true;
+      nextPage = null;
+    } else {
+      // get the next page while this one is processed
+      nextPage = fetch(chunk.getPriorLastKey());
+    }
+  }
+
+  private FutureTask<S3ObjectsChunk> fetch(final String priorLastKey) {
+    FutureTask<S3ObjectsChunk> task = new FutureTask<S3ObjectsChunk>(new Callable<S3ObjectsChunk>() {
+      public S3ObjectsChunk call() throws Exception {
+        fileSystem.count("list");
+        return fileSystem.getCaller().call("list", false, new ResilientCaller.Request<S3ObjectsChunk>() {
+          S3ObjectsChunk execute() throws S3ServiceException {
+            return service.listObjectsChunked(bucketName, prefix, delimiter, pageSize, priorLastKey);
+          }
+        });
+      }
+    });
+    executor.execute(task);
+    return task;
+  }
+}
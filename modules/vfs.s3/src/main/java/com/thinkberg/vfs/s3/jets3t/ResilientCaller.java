@@ -0,0 +1,275 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3ServiceException;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls idempotent S3 operations, retrying them after server errors and timeouts with
+ * jittered exponential backoff. Calls that usually answer fast, like HEAD requests or
+ * GETs of small objects, may be hedged: if the first request takes longer than 95% of
+ * the recent ones, a second one is sent and the first response wins.
+ *
+ * @author Matthias L. Jugel
+ */
+class ResilientCaller {
+  private static final Log LOG = LogFactory.getLog(ResilientCaller.class);
+
+  private static final long RETRY_DELAY = 100;
+  private static final long MAX_RETRY_DELAY = 5000;
+  private static final int LATENCY_SAMPLES = 200;
+  private static final int MIN_LATENCY_SAMPLES = 20;
+  private static final long MIN_HEDGE_DELAY = 10;
+
+  private static final Random RANDOM = new Random();
+
+  private final Jets3tFileSystem fileSystem;
+  private final int retries;
+  private final boolean hedging;
+
+  private final Map<String, LatencySamples> latencies = new ConcurrentHashMap<String, LatencySamples>();
+
+  /**
+   * Create a new caller.
+   *
+   * @param fileSystem the file system, for counting requests and running hedged ones
+   * @param retries    the number of retries after the first attempt
+   * @param hedging    true to send hedged requests for calls that allow it
+   */
+  ResilientCaller(Jets3tFileSystem fileSystem, int retries, boolean hedging) {
+    this.fileSystem = fileSystem;
+    this.retries = retries;
+    this.hedging = hedging;
+  }
+
+  /**
+   * Call an operation, retrying it if it fails for a reason that may go away.
+   *
+   * @param operation the operation name, for counting and latency tracking
+   * @param hedged    true if the operation may be sent twice to cut slow responses short
+   * @param request   the request
+   * @return the result of the first successful attempt
+   * @throws S3ServiceException if the last attempt fails or the failure is permanent
+   */
+  <T> T call(String operation, boolean hedged, Request<T> request) throws S3ServiceException {
+    for (int attempt = 0; ; attempt++) {
+      try {
+        if (hedging && hedged) {
+          return hedge(operation, request);
+        }
+        return measure(operation, request);
+      } catch (S3ServiceException e) {
+        if (attempt >= retries || !isRetryable(e)) {
+          throw e;
+        }
+        fileSystem.count(operation + ".retry");
+        long delay = getRetryDelay(attempt);
+        LOG.debug(String.format("retrying %s in %dms (attempt %d): %s", operation, delay, attempt + 2, e.getMessage()));
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw e;
+        }
+      }
+    }
+  }
+
+  /**
+   * Check whether a failed request may succeed when it is sent again. Client errors,
+   * like a missing object or a failed precondition, are permanent, and so is the answer
+   * to a conditional request that the object has not been modified.
+   *
+   * @param e the failure
+   * @return true if a retry makes sense
+   */
+  static boolean isRetryable(S3ServiceException e) {
+    int responseCode = e.getResponseCode();
+    return responseCode < 300 || responseCode >= 500 || responseCode == 408;
+  }
+
+  /**
+   * Get the delay before a retry, growing exponentially with the attempts made. Full
+   * jitter spreads the retries of many clients that failed at the same time.
+   *
+   * @param attempt the number of the failed attempt, starting at 0
+   * @return the delay in milliseconds
+   */
+  static long getRetryDelay(int attempt) {
+    return (long) (RANDOM.nextDouble() * Math.min(MAX_RETRY_DELAY, RETRY_DELAY << Math.min(attempt, 16)));
+  }
+
+  private <T> T measure(String operation, Request<T> request) throws S3ServiceException {
+    long start = System.nanoTime();
+    T result = request.execute();
+    getLatencies(operation).add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return result;
+  }
+
+  private <T> T hedge(final String operation, final Request<T> request) throws S3ServiceException {
+    long delay = getLatencies(operation).getPercentile(95);
+    if (delay < 0) {
+      // not enough samples yet to know what is slow
+      return measure(operation, request);
+    }
+
+    Executor executor = fileSystem.getRequestExecutor();
+    CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+    Callable<T> attempt = new Callable<T>() {
+      public T call() throws Exception {
+        return measure(operation, request);
+      }
+    };
+    Future<T> first = completion.submit(attempt);
+    Future<T> second = null;
+    try {
+      Future<T> done = completion.poll(Math.max(MIN_HEDGE_DELAY, delay), TimeUnit.MILLISECONDS);
+      if (null == done) {
+        fileSystem.count(operation + ".hedge");
+        second = completion.submit(attempt);
+        done = completion.take();
+      }
+      try {
+        T result = done.get();
+        if (done == second) {
+          fileSystem.count(operation + ".hedge.won");
+        }
+        discardLater(executor, done == first ? second : first, request);
+        return result;
+      } catch (ExecutionException e) {
+        if (null == second) {
+          throw e;
+        }
+        // the other request may still succeed
+        return completion.take().get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      discardLater(executor, first, request);
+      discardLater(executor, second, request);
+      throw new S3ServiceException(String.format("interrupted while waiting for %s", operation), e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof S3ServiceException) {
+        throw (S3ServiceException) e.getCause();
+      }
+      throw new S3ServiceException(String.format("%s failed", operation), e.getCause());
+    }
+  }
+
+  /**
+   * Release the result of a request that lost the race, once it arrives.
+   *
+   * @param executor the executor to wait on
+   * @param loser    the request that lost, may be null
+   * @param request  the request, which knows how to discard its result
+   */
+  private <T> void discardLater(Executor executor, final Future<T> loser, final Request<T> request) {
+    if (null == loser) {
+      return;
+    }
+    executor.execute(new Runnable() {
+      public void run() {
+        try {
+          request.discard(loser.get());
+        } catch (Exception e) {
+          // nothing to discard
+        }
+      }
+    });
+  }
+
+  private LatencySamples getLatencies(String operation) {
+    LatencySamples samples = latencies.get(operation);
+    if (null == samples) {
+      synchronized (latencies) {
+        samples = latencies.get(operation);
+        if (null == samples) {
+          samples = new LatencySamples();
+          latencies.put(operation, samples);
+        }
+      }
+    }
+    return samples;
+  }
+
+  /**
+   * An idempotent S3 request.
+   */
+  abstract static class Request<T> {
+    /**
+     * Send the request.
+     *
+     * @return the result
+     * @throws S3ServiceException if the request fails
+     */
+    abstract T execute() throws S3ServiceException;
+
+    /**
+     * Release the result of a hedged request that is not used, like an open content
+     * stream.
+     *
+     * @param result the result
+     */
+    void discard(T result) {
+    }
+  }
+
+  /**
+   * The latencies of the most recent requests of one operation.
+   */
+  private static class LatencySamples {
+    private final long[] samples = new long[LATENCY_SAMPLES];
+    private int count = 0;
+    private int next = 0;
+
+    synchronized void add(long latency) {
+      samples[next] = latency;
+      next = (next + 1) % samples.length;
+      count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Get a percentile of the recorded latencies.
+     *
+     * @param percentile the percentile
+     * @return the latency in milliseconds or -1 if there are too few samples
+     */
+    synchronized long getPercentile(int percentile) {
+      if (count < MIN_LATENCY_SAMPLES) {
+        return -1;
+      }
+      long[] sorted = new long[count];
+      System.arraycopy(samples, 0, sorted, 0, count);
+      Arrays.sort(sorted);
+      return sorted[Math.min(count - 1, count * percentile / 100)];
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent calls for the same key into one. The first caller runs the call,
+ * all callers arriving while it runs wait and share its result or failure. Calls that
+ * arrive afterwards run again.
+ *
+ * @author Matthias L. Jugel
+ */
+class SingleFlight<V> {
+  private final ConcurrentMap<String, FutureTask<V>> flights = new ConcurrentHashMap<String, FutureTask<V>>();
+  private final AtomicLong shared = new AtomicLong();
+
+  /**
+   * Run a call unless the same call is already running, then wait for its result.
+   *
+   * @param key  identifies the call
+   * @param call the call
+   * @return the result of the call
+   * @throws Exception the failure of the call, or an InterruptedException if the thread
+   *                   is interrupted while waiting
+   */
+  V run(String key, Callable<V> call) throws Exception {
+    FutureTask<V> task = new FutureTask<V>(call);
+    FutureTask<V> running = flights.putIfAbsent(key, task);
+    if (null != running) {
+      shared.incrementAndGet();
+      return get(running);
+    }
+    try {
+      task.run();
+      return get(task);
+    } finally {
+      flights.remove(key, task);
+    }
+  }
+
+  /**
+   * Get the number of calls that did not run on their own but shared a running one.
+   *
+   * @return the number of shared calls
+   */
+  long getSharedCount() {
+    return shared.get();
+  }
+
+  private V get(FutureTask<V> task) throws Exception {
+    try {
+      return task.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof Exception) {
+        throw (Exception) e.getCause();
+      }
+      throw (Error) e.getCause();
+    }
+  }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.utils.ServiceUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends content to S3 while it is being written. The upload runs in its own thread
+ * and reads the content from a bounded queue of chunks, so only a few chunks are held
+ * in memory and nothing needs to be spooled to disk. The content length must be known
+ * in advance. The MD5 hash of the content is computed while writing and compared to
+ * the ETag S3 returns for the stored object.
+ *
+ * @author Matthias L. Jugel
+ */
+class StreamingUpload extends OutputStream {
+  private static final Log LOG = LogFactory.getLog(StreamingUpload.class);
+
+  private static final long POLL_INTERVAL = 100;
+  // a writer that does not deliver a chunk for this long has abandoned the upload
+  private static final long STALL_TIMEOUT = 60 * 1000;
+
+  private static final byte[] END = new byte[0];
+  private static final byte[] ABORT = new byte[0];
+
+  private final S3Object object;
+  private final long length;
+  private OutputStream tee;
+  private boolean teeFailed = false;
+  private final MessageDigest digest;
+
+  private final int chunkSize;
+  private final BlockingQueue<byte[]> chunks;
+  private final Future<S3Object> upload;
+
+  private byte[] chunk;
+  private int chunkLength = 0;
+  private long written = 0;
+  private boolean closed = false;
+  private S3Object storedObject = null;
+
+  /**
+   * Start a new upload.
+   *
+   * @param executor    the executor to run the upload in
+   * @param service     the S3 service
+   * @param bucket      the target bucket
+   * @param object      the object to store, including its metadata
+   * @param length      the exact number of bytes that will be written
+   * @param tee         an additional stream receiving the content, may be null
+   * @param chunkSize   the size of the chunks handed to the upload
+   * @param queueLength the number of chunks buffered before a writer waits
+   */
+  StreamingUpload(ExecutorService executor, final S3Service service, final S3Bucket bucket,
+                  final S3Object object, long length, OutputStream tee, int chunkSize, int queueLength) {
+    this.object = object;
+    this.length = length;
+    this.tee = tee;
+    this.chunkSize = chunkSize;
+    this.chunks = new ArrayBlockingQueue<byte[]>(queueLength);
+    this.chunk = new byte[chunkSize];
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 not available", e);
+    }
+
+    object.setContentLength(length);
+    object.setDataInputStream(new ChunkInputStream());
+    upload = executor.submit(new Callable<S3Object>() {
+      public S3Object call() throws Exception {
+        return service.putObject(bucket, object);
+      }
+    });
+  }
+
+  public void write(int b) throws IOException {
+    write(new byte[]{(byte) b}, 0, 1);
+  }
+
+  public void write(byte[] b, int off, int len) throws IOException {
+    if (closed) {
+      throw new IOException("upload stream is closed");
+    }
+    if (written + len > length) {
+      abort();
+      throw new IOException(String.format("content of '%s' exceeds the announced %d bytes", object.getKey(), length));
+    }
+    digest.update(b, off, len);
+    if (null != tee) {
+      try {
+        tee.write(b, off, len);
+      } catch (IOException e) {
+        // the additional copy is optional, the upload goes on without it
+        LOG.warn(String.format("can't copy content of '%s': %s", object.getKey(), e.getMessage()));
+        teeFailed = true;
+        tee = null;
+      }
+    }
+    written += len;
+    while (len > 0) {
+      int count = Math.min(len, chunk.length - chunkLength);
+      System.arraycopy(b, off, chunk, chunkLength, count);
+      chunkLength += count;
+      off += count;
+      len -= count;
+      if (chunkLength == chunk.length) {
+        enqueue(chunk);
+        chunk = new byte[chunkSize];
+        chunkLength = 0;
+      }
+    }
+  }
+
+  /**
+   * Finish the upload and wait for S3 to store the object.
+   *
+   * @throws IOException if the content is incomplete, the upload failed or the
+   *                     stored content does not match what has been written
+   */
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    if (written != length) {
+      abort();
+      throw new IOException(String.format("content of '%s' is incomplete (%d of %d bytes)",
+                                          object.getKey(), written, length));
+    }
+    if (chunkLength > 0) {
+      byte[] last = new byte[chunkLength];
+      System.arraycopy(chunk, 0, last, 0, chunkLength);
+      enqueue(last);
+    }
+    enqueue(END);
+    closed = true;
+
+    storedObject = awaitUpload();
+    String md5 = ServiceUtils.toHex(digest.digest());
+    if (null != storedObject.getETag() && !md5.equalsIgnoreCase(storedObject.getETag())) {
+      throw new IOException(String.format("stored content of '%s' is corrupt (MD5 %s, ETag %s)",
+                                          object.getKey(), md5, storedObject.getETag()));
+    }
+    LOG.debug(String.format("sent '%s' to storage (%d bytes, MD5 %s)", object.getKey(), length, md5));
+  }
+
+  /**
+   * Get the object as stored by S3.
+   *
+   * @return the stored object or null if the upload has not finished successfully
+   */
+  S3Object getStoredObject() {
+    return storedObject;
+  }
+
+  /**
+   * Check whether the additional stream received all content.
+   *
+   * @return true if writing to the additional stream failed
+   */
+  boolean hasTeeFailed() {
+    return teeFailed;
+  }
+
+  /**
+   * Abort the upload. The incomplete request body makes S3 discard the content.
+   */
+  void abort() {
+    if (!closed) {
+      closed = true;
+      chunks.clear();
+      chunks.offer(ABORT);
+      upload.cancel(true);
+    }
+  }
+
+  private void enqueue(byte[] data) throws IOException {
+    try {
+      while (!chunks.offer(data, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+        if (upload.isDone()) {
+          awaitUpload();
+          throw new IOException(String.format("upload of '%s' ended early", object.getKey()));
+        }
+      }
+    } catch (InterruptedException e) {
+      abort();
+      throw new IOException(String.format("interrupted while sending '%s'", object.getKey()));
+    }
+  }
+
+  private S3Object awaitUpload() throws IOException {
+    try {
+      return upload.get();
+    } catch (InterruptedException e) {
+      abort();
+      throw new IOException(String.format("interrupted while sending '%s'", object.getKey()));
+    } catch (ExecutionException e) {
+      IOException ioe = new IOException(String.format("can't send '%s' to storage", object.getKey()));
+      ioe.initCause(e.getCause());
+      throw ioe;
+    }
+  }
+
+  /**
+   * The request body as read by the upload thread.
+   */
+  private class ChunkInputStream extends InputStream {
+    private byte[] current = null;
+    private int position = 0;
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (current == END) {
+        // keep returning the end of the stream
+        return -1;
+      }
+      if (null == current || position == current.length) {
+        try {
+          current = chunks.poll(STALL_TIMEOUT, TimeUnit.MILLISECONDS);
+          position = 0;
+          if (null == current) {
+            current = ABORT;
+            throw new IOException(String.format("upload of '%s' stalled", object.getKey()));
+          }
+        } catch (InterruptedException e) {
+          throw new IOException("upload aborted");
+        }
+      }
+      if (current == ABORT) {
+        throw new IOException("upload aborted");
+      }
+      if (current == END) {
+        return -1;
+      }
+      int count = Math.min(len, current.length - position);
+      System.arraycopy(current, position, b, off, count);
+      position += count;
+      return count;
+    }
+  }
+}
@@ -0,0 +1,578 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.jets3t.service.Constants;
+import org.jets3t.service.S3Service;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads written content to S3 in the background. The content is spooled to a local
+ * file and described by a journal entry, both are forced to disk before the writer
+ * continues. Background workers upload the entries in the order they were written. After
+ * a crash the journal is replayed, so no acknowledged content is lost. Until an upload
+ * finished, the details and content of the object are served from the spool. A newer
+ * version of an object replaces a version still waiting for its upload. Uploads that
+ * keep failing are given up after a few attempts, they stay in the journal and are
+ * tried again after the next start.
+ *
+ * @author Matthias L. Jugel
+ */
+class WriteBehindQueue {
+  private static final Log LOG = LogFactory.getLog(WriteBehindQueue.class);
+
+  private static final String DATA_SUFFIX = ".data";
+  private static final String JOURNAL_SUFFIX = ".journal";
+  private static final String TEMP_SUFFIX = ".tmp";
+
+  private static final String JOURNAL_KEY = "key";
+  private static final String JOURNAL_CONTENT_TYPE = "contentType";
+  private static final String JOURNAL_LAST_MODIFIED = "lastModified";
+  private static final String JOURNAL_METADATA_PREFIX = "metadata.";
+
+  private static final long MIN_RETRY_DELAY = 1000;
+  private static final long MAX_RETRY_DELAY = 60 * 1000;
+  private static final int MAX_ATTEMPTS = 8;
+
+  private final Jets3tFileSystem fileSystem;
+  private final S3Service service;
+  private final S3Bucket bucket;
+  private final File directory;
+
+  // entries waiting for upload in the order they were written
+  private final LinkedList<Entry> queue = new LinkedList<Entry>();
+  // the newest entry of each key, waiting or being uploaded
+  private final Map<String, Entry> latest = new HashMap<String, Entry>();
+  // keys being uploaded right now
+  private final Set<String> uploading = new HashSet<String>();
+  // entries that could not be uploaded, they stay in the journal until the next start
+  private final Map<String, Entry> abandoned = new HashMap<String, Entry>();
+  private long sequence = 0;
+  private boolean closed = false;
+
+  private final AtomicLong uploaded = new AtomicLong();
+  private final AtomicLong superseded = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+
+  /**
+   * Create the queue and replay the journal left by a previous run.
+   *
+   * @param fileSystem the file system, notified about finished uploads
+   * @param service    the S3 service
+   * @param bucket     the bucket to upload to
+   * @param directory  the directory for the spool files and the journal
+   * @throws IOException if the directory cannot be created or the journal not be read
+   */
+  WriteBehindQueue(Jets3tFileSystem fileSystem, S3Service service, S3Bucket bucket, File directory)
+          throws IOException {
+    this.fileSystem = fileSystem;
+    this.service = service;
+    this.bucket = bucket;
+    this.directory = directory;
+
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException(String.format("can't create write-behind directory '%s'", directory));
+    }
+    replay();
+  }
+
+  /**
+   * Start the workers uploading the queued entries.
+   *
+   * @param executor the executor to run the workers in
+   * @param workers  the number of parallel uploads
+   */
+  void start(Executor executor, int workers) {
+    for (int i = 0; i < Math.max(1, workers); i++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          Entry entry;
+          while (null != (entry = take())) {
+            upload(entry);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Create a spool file for new content.
+   *
+   * @return the spool file
+   * @throws IOException if the file cannot be created
+   */
+  File createSpoolFile() throws IOException {
+    return File.createTempFile("moxo.", TEMP_SUFFIX, directory);
+  }
+
+  /**
+   * Queue content for upload. The spool file and the journal entry are forced to disk
+   * before this method returns. A version of the same object waiting for its upload is
+   * dropped.
+   *
+   * @param object    the object, including its user metadata
+   * @param spoolFile the spool file holding the content
+   * @throws IOException if the entry cannot be written to the journal
+   */
+  void enqueue(S3Object object, File spoolFile) throws IOException {
+    force(spoolFile);
+
+    Properties journal = new Properties();
+    journal.setProperty(JOURNAL_KEY, object.getKey());
+    if (null != object.getContentType()) {
+      journal.setProperty(JOURNAL_CONTENT_TYPE, object.getContentType());
+    }
+    journal.setProperty(JOURNAL_LAST_MODIFIED, String.valueOf(System.currentTimeMillis()));
+    for (Object metadataName : object.getModifiableMetadata().keySet()) {
+      String header = (String) metadataName;
+      Object value = object.getMetadata(header);
+      if (header.startsWith(Constants.REST_METADATA_PREFIX) && null != value) {
+        journal.setProperty(JOURNAL_METADATA_PREFIX + header.substring(Constants.REST_METADATA_PREFIX.length()),
+                            value.toString());
+      }
+    }
+
+    File tempFile = File.createTempFile("moxo.", TEMP_SUFFIX, directory);
+    OutputStream os = new FileOutputStream(tempFile);
+    try {
+      journal.store(os, null);
+      os.flush();
+      ((FileOutputStream) os).getFD().sync();
+    } finally {
+      os.close();
+    }
+
+    // the sequence number decides which version of a key wins, during this run as well
+    // as after a replay, so it is taken together with adding the entry
+    synchronized (this) {
+      long id = ++sequence;
+      String name = String.format("%019d", id);
+      File dataFile = new File(directory, name + DATA_SUFFIX);
+      File journalFile = new File(directory, name + JOURNAL_SUFFIX);
+      if (!spoolFile.renameTo(dataFile)) {
+        tempFile.delete();
+        throw new IOException(String.format("can't move '%s' into the write-behind journal", spoolFile));
+      }
+      if (!tempFile.renameTo(journalFile)) {
+        dataFile.delete();
+        tempFile.delete();
+        throw new IOException(String.format("can't write write-behind journal entry for '%s'", object.getKey()));
+      }
+      add(new Entry(id, journal, dataFile, journalFile));
+      LOG.debug(String.format("queued '%s' for upload (%d bytes)", object.getKey(), dataFile.length()));
+    }
+  }
+
+  /**
+   * Get the details of the newest version of an object that has not been uploaded yet.
+   *
+   * @param key the S3 key
+   * @return the object details or null if there is no upload pending
+   */
+  synchronized S3Object getPendingDetails(String key) {
+    Entry entry = latest.get(key);
+    return null == entry ? null : entry.createObject(bucket);
+  }
+
+  /**
+   * Get the content of the newest version of an object that has not been uploaded yet.
+   * Readers must open the file right away, it goes away once the upload is done.
+   *
+   * @param key the S3 key
+   * @return the spool file or null if there is no upload pending
+   */
+  synchronized File getPendingContent(String key) {
+    Entry entry = latest.get(key);
+    return null == entry ? null : entry.dataFile;
+  }
+
+  /**
+   * Get the keys with pending uploads below a prefix.
+   *
+   * @param prefix the key prefix
+   * @return the keys
+   */
+  synchronized List<String> getPendingKeys(String prefix) {
+    List<String> keys = new ArrayList<String>();
+    for (String key : latest.keySet()) {
+      if (key.startsWith(prefix)) {
+        keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Wait until the pending upload of an object is done.
+   *
+   * @param key the S3 key
+   * @throws IOException if the thread is interrupted while waiting
+   */
+  synchronized void await(String key) throws IOException {
+    try {
+      while (!closed && latest.containsKey(key)) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(String.format("interrupted while waiting for the upload of '%s'", key));
+    }
+  }
+
+  /**
+   * Wait until all pending uploads of keys starting with the prefix are done.
+   *
+   * @param prefix the key prefix
+   * @throws IOException if the thread is interrupted while waiting
+   */
+  synchronized void awaitAll(String prefix) throws IOException {
+    try {
+      while (!closed && !getPendingKeys(prefix).isEmpty()) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(String.format("interrupted while waiting for uploads below '%s'", prefix));
+    }
+  }
+
+  /**
+   * Drop the pending upload of an object that is about to be deleted. If the object is
+   * being uploaded right now, wait for the request to finish.
+   *
+   * @param key the S3 key
+   * @throws IOException if the thread is interrupted while waiting
+   */
+  synchronized void cancel(String key) throws IOException {
+    Iterator<Entry> it = queue.iterator();
+    while (it.hasNext()) {
+      Entry entry = it.next();
+      if (entry.key.equals(key)) {
+        it.remove();
+        entry.delete();
+      }
+    }
+    // an upload in progress notices that it is no longer the latest version
+    latest.remove(key);
+    Entry failed = abandoned.remove(key);
+    if (null != failed) {
+      failed.delete();
+    }
+    notifyAll();
+    try {
+      while (!closed && uploading.contains(key)) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(String.format("interrupted while waiting for the upload of '%s'", key));
+    }
+  }
+
+  /**
+   * Stop the workers. Entries that have not been uploaded stay in the journal and are
+   * uploaded after the next start.
+   */
+  synchronized void close() {
+    closed = true;
+    notifyAll();
+  }
+
+  synchronized int getPendingCount() {
+    return latest.size();
+  }
+
+  long getUploadCount() {
+    return uploaded.get();
+  }
+
+  long getSupersededCount() {
+    return superseded.get();
+  }
+
+  long getFailureCount() {
+    return failures.get();
+  }
+
+  synchronized int getAbandonedCount() {
+    return abandoned.size();
+  }
+
+  private void replay() throws IOException {
+    File[] files = directory.listFiles();
+    Arrays.sort(files);
+    Set<String> journaled = new HashSet<String>();
+    for (File file : files) {
+      String name = file.getName();
+      if (name.endsWith(JOURNAL_SUFFIX)) {
+        String id = name.substring(0, name.length() - JOURNAL_SUFFIX.length());
+        File dataFile = new File(directory, id + DATA_SUFFIX);
+        if (!dataFile.exists()) {
+          LOG.warn(String.format("dropping write-behind journal entry '%s' without content", name));
+          file.delete();
+          continue;
+        }
+        Properties journal = new Properties();
+        InputStream is = new FileInputStream(file);
+        try {
+          journal.load(is);
+        } finally {
+          is.close();
+        }
+        long sequenceNumber = Long.parseLong(id);
+        sequence = Math.max(sequence, sequenceNumber);
+        add(new Entry(sequenceNumber, journal, dataFile, file));
+        journaled.add(id);
+      }
+    }
+    for (File file : files) {
+      String name = file.getName();
+      // content that never made it into the journal has not been acknowledged
+      if (name.endsWith(TEMP_SUFFIX) ||
+          (name.endsWith(DATA_SUFFIX) && !journaled.contains(name.substring(0, name.length() - DATA_SUFFIX.length())))) {
+        file.delete();
+      }
+    }
+    if (!latest.isEmpty()) {
+      LOG.info(String.format("replayed %d pending uploads from '%s'", latest.size(), directory));
+    }
+  }
+
+  private synchronized void add(Entry entry) {
+    // a newer version replaces the one waiting for its upload
+    Entry failed = abandoned.remove(entry.key);
+    if (null != failed) {
+      failed.delete();
+    }
+    Iterator<Entry> it = queue.iterator();
+    while (it.hasNext()) {
+      Entry waiting = it.next();
+      if (waiting.key.equals(entry.key)) {
+        it.remove();
+        waiting.delete();
+        superseded.incrementAndGet();
+        LOG.debug(String.format("upload of '%s' superseded by a newer version", entry.key));
+      }
+    }
+    queue.add(entry);
+    latest.put(entry.key, entry);
+    notifyAll();
+  }
+
+  /**
+   * Take the next entry whose key is not being uploaded, so the versions of an object
+   * are never uploaded at the same time.
+   *
+   * @return the entry or null if the queue has been closed
+   */
+  private synchronized Entry take() {
+    while (!closed) {
+      for (Iterator<Entry> it = queue.iterator(); it.hasNext();) {
+        Entry entry = it.next();
+        if (!uploading.contains(entry.key)) {
+          it.remove();
+          uploading.add(entry.key);
+          return entry;
+        }
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Upload an entry, retrying failures that may go away. An entry that still fails is
+   * given up, it stays in the journal and is tried again after the next start.
+   *
+   * @param entry the entry
+   */
+  private void upload(Entry entry) {
+    long delay = MIN_RETRY_DELAY;
+    try {
+      for (int attempt = 1; !isClosed() && isLatest(entry); attempt++) {
+        boolean retryable;
+        String reason;
+        try {
+          S3Object object = entry.createObject(bucket);
+          InputStream is = new FileInputStream(entry.dataFile);
+          try {
+            object.setDataInputStream(is);
+            fileSystem.count("put.writebehind");
+            S3Object stored = service.putObject(bucket, object);
+            uploaded.incrementAndGet();
+            LOG.debug(String.format("uploaded '%s' (%d bytes)", entry.key, entry.dataFile.length()));
+            finished(entry, stored.getETag());
+            return;
+          } finally {
+            is.close();
+          }
+        } catch (S3ServiceException e) {
+          retryable = ResilientCaller.isRetryable(e);
+          reason = e.getMessage();
+        } catch (IOException e) {
+          retryable = true;
+          reason = e.getMessage();
+        }
+        failures.incrementAndGet();
+        if (!retryable || attempt >= MAX_ATTEMPTS) {
+          abandon(entry, attempt, reason);
+          return;
+        }
+        LOG.error(String.format("can't upload '%s', retrying in %ds: %s", entry.key, delay / 1000, reason));
+        synchronized (this) {
+          wait(delay);
+        }
+        delay = Math.min(MAX_RETRY_DELAY, delay * 2);
+      }
+      if (!isLatest(entry)) {
+        // superseded or cancelled while being uploaded
+        entry.delete();
+      }
+    } catch (InterruptedException e) {
+      LOG.warn(String.format("upload of '%s' interrupted, it stays in the journal", entry.key));
+    } finally {
+      synchronized (this) {
+        uploading.remove(entry.key);
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Give up an entry that can't be uploaded. Its journal entry is kept, so the content is
+   * not lost, but readers and writers of the key no longer wait for it.
+   *
+   * @param entry    the entry
+   * @param attempts the number of attempts made
+   * @param reason   the reason of the last failure
+   */
+  private synchronized void abandon(Entry entry, int attempts, String reason) {
+    if (latest.get(entry.key) != entry) {
+      // superseded or cancelled meanwhile
+      entry.delete();
+      return;
+    }
+    latest.remove(entry.key);
+    abandoned.put(entry.key, entry);
+    LOG.error(String.format("giving up upload of '%s' after %d attempts, it stays in the journal: %s",
+                            entry.key, attempts, reason));
+  }
+
+  private void finished(Entry entry, String eTag) {
+    entry.journalFile.delete();
+    boolean current;
+    synchronized (this) {
+      current = latest.get(entry.key) == entry;
+      if (current) {
+        latest.remove(entry.key);
+      }
+    }
+    if (current) {
+      // the spool becomes the cached content
+      fileSystem.uploaded(entry.key, eTag, entry.dataFile);
+    } else {
+      entry.dataFile.delete();
+      fileSystem.uploaded(entry.key, eTag, null);
+    }
+  }
+
+  private synchronized boolean isClosed() {
+    return closed;
+  }
+
+  private synchronized boolean isLatest(Entry entry) {
+    return latest.get(entry.key) == entry;
+  }
+
+  private static void force(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.getChannel().force(true);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /**
+   * A journaled version of an object waiting for its upload.
+   */
+  private static class Entry {
+    final long id;
+    final String key;
+    final Properties journal;
+    final File dataFile;
+    final File journalFile;
+
+    Entry(long id, Properties journal, File dataFile, File journalFile) {
+      this.id = id;
+      this.key = journal.getProperty(JOURNAL_KEY);
+      this.journal = journal;
+      this.dataFile = dataFile;
+      this.journalFile = journalFile;
+    }
+
+    S3Object createObject(S3Bucket bucket) {
+      S3Object object = new S3Object(bucket, key);
+      object.setContentType(journal.getProperty(JOURNAL_CONTENT_TYPE));
+      object.setContentLength(dataFile.length());
+      object.setLastModifiedDate(new Date(Long.parseLong(journal.getProperty(JOURNAL_LAST_MODIFIED))));
+      for (Object property : journal.keySet()) {
+        String name = (String) property;
+        if (name.startsWith(JOURNAL_METADATA_PREFIX)) {
+          object.addMetadata(Constants.REST_METADATA_PREFIX + name.substring(JOURNAL_METADATA_PREFIX.length()),
+                             journal.getProperty(name));
+        }
+      }
+      return object;
+    }
+
+    void delete() {
+      journalFile.delete();
+      dataFile.delete();
+    }
+
+    public String toString() {
+      return String.format("%d:%s", id, key);
+    }
+  }
+}
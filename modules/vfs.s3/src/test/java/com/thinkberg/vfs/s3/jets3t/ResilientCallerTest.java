@@ -0,0 +1,141 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import junit.framework.TestCase;
+import org.jets3t.service.S3ServiceException;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Matthias L. Jugel
+ */
+public class ResilientCallerTest extends TestCase {
+  private File directory;
+  private Jets3tFileSystem fileSystem;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("moxotest.", ".cache");
+    directory.delete();
+    fileSystem = new StubS3Service().createFileSystem(directory);
+  }
+
+  protected void tearDown() throws Exception {
+    fileSystem.close();
+    StubS3Service.deleteAll(directory);
+    super.tearDown();
+  }
+
+  public void testServerErrorIsRetried() throws S3ServiceException {
+    ResilientCaller caller = new ResilientCaller(fileSystem, 3, false);
+    final AtomicInteger attempts = new AtomicInteger();
+    String result = caller.call("get", false, new ResilientCaller.Request<String>() {
+      String execute() throws S3ServiceException {
+        if (attempts.incrementAndGet() < 3) {
+          throw failure(503);
+        }
+        return "ok";
+      }
+    });
+    assertEquals("ok", result);
+    assertEquals(3, attempts.get());
+    assertEquals(2L, fileSystem.getStatistics().get("request.none.get.retry"));
+  }
+
+  public void testClientErrorIsNotRetried() {
+    ResilientCaller caller = new ResilientCaller(fileSystem, 3, false);
+    final AtomicInteger attempts = new AtomicInteger();
+    try {
+      caller.call("get", false, new ResilientCaller.Request<String>() {
+        String execute() throws S3ServiceException {
+          attempts.incrementAndGet();
+          throw failure(404);
+        }
+      });
+      fail("a missing object must be reported");
+    } catch (S3ServiceException e) {
+      assertEquals(404, e.getResponseCode());
+    }
+    assertEquals(1, attempts.get());
+  }
+
+  public void testRetriesAreBounded() {
+    ResilientCaller caller = new ResilientCaller(fileSystem, 2, false);
+    final AtomicInteger attempts = new AtomicInteger();
+    try {
+      caller.call("get", false, new ResilientCaller.Request<String>() {
+        String execute() throws S3ServiceException {
+          attempts.incrementAndGet();
+          throw failure(500);
+        }
+      });
+      fail("the last failure must be reported");
+    } catch (S3ServiceException e) {
+      assertEquals(500, e.getResponseCode());
+    }
+    assertEquals(3, attempts.get());
+  }
+
+  public void testRetryableResponseCodes() {
+    assertTrue(ResilientCaller.isRetryable(failure(500)));
+    assertTrue(ResilientCaller.isRetryable(failure(503)));
+    assertTrue(ResilientCaller.isRetryable(failure(408)));
+    // no response at all, like a connection reset
+    assertTrue(ResilientCaller.isRetryable(failure(-1)));
+    assertFalse(ResilientCaller.isRetryable(failure(304)));
+    assertFalse(ResilientCaller.isRetryable(failure(403)));
+    assertFalse(ResilientCaller.isRetryable(failure(404)));
+  }
+
+  public void testSlowRequestIsHedged() throws S3ServiceException {
+    ResilientCaller caller = new ResilientCaller(fileSystem, 0, true);
+    ResilientCaller.Request<String> fast = new ResilientCaller.Request<String>() {
+      String execute() throws S3ServiceException {
+        return "fast";
+      }
+    };
+    for (int i = 0; i < 50; i++) {
+      caller.call("head", true, fast);
+    }
+
+    final AtomicInteger attempts = new AtomicInteger();
+    String result = caller.call("head", true, new ResilientCaller.Request<String>() {
+      String execute() throws S3ServiceException {
+        if (attempts.incrementAndGet() == 1) {
+          try {
+            Thread.sleep(2000);
+          } catch (InterruptedException e) {
+            // the hedged request won
+          }
+          return "slow";
+        }
+        return "hedged";
+      }
+    });
+    assertEquals("hedged", result);
+    assertEquals(1L, fileSystem.getStatistics().get("request.none.head.hedge.won"));
+  }
+
+  private static S3ServiceException failure(int responseCode) {
+    S3ServiceException e = new S3ServiceException(String.format("stub failure %d", responseCode));
+    e.setResponseCode(responseCode);
+    return e;
+  }
+}
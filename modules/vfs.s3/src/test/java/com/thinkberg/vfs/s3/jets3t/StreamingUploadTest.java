@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import junit.framework.TestCase;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author Matthias L. Jugel
+ */
+public class StreamingUploadTest extends TestCase {
+  private static final int CHUNK_SIZE = 64 * 1024;
+  private static final int QUEUE_LENGTH = 16;
+
+  private StubS3Service service;
+  private S3Bucket bucket;
+  private ExecutorService executor;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    service = new StubS3Service();
+    bucket = new S3Bucket("bucket");
+    executor = Executors.newCachedThreadPool();
+  }
+
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testContentIsStored() throws IOException {
+    byte[] content = createContent(200 * 1024 + 17);
+    ByteArrayOutputStream tee = new ByteArrayOutputStream();
+    StreamingUpload upload = new StreamingUpload(executor, service, bucket, new S3Object(bucket, "key"),
+                                                 content.length, tee, CHUNK_SIZE, QUEUE_LENGTH);
+    for (int offset = 0; offset < content.length; offset += 1000) {
+      upload.write(content, offset, Math.min(1000, content.length - offset));
+    }
+    upload.close();
+
+    assertTrue(Arrays.equals(content, service.getContent("key")));
+    assertTrue(Arrays.equals(content, tee.toByteArray()));
+    assertEquals(StubS3Service.md5(content), upload.getStoredObject().getETag());
+    assertFalse(upload.hasTeeFailed());
+  }
+
+  public void testSmallChunksAndShortQueue() throws IOException {
+    byte[] content = createContent(10 * 1000 + 1);
+    StreamingUpload upload = new StreamingUpload(executor, service, bucket, new S3Object(bucket, "key"),
+                                                 content.length, null, 1000, 1);
+    upload.write(content, 0, content.length);
+    upload.close();
+
+    assertTrue(Arrays.equals(content, service.getContent("key")));
+    assertEquals(StubS3Service.md5(content), upload.getStoredObject().getETag());
+  }
+
+  public void testTooMuchContentFails() throws IOException {
+    StreamingUpload upload = new StreamingUpload(executor, service, bucket, new S3Object(bucket, "key"), 10, null,
+                                                 CHUNK_SIZE, QUEUE_LENGTH);
+    try {
+      upload.write(createContent(11), 0, 11);
+      fail("content longer than announced must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+    assertNull(upload.getStoredObject());
+    assertNull(service.getContent("key"));
+  }
+
+  public void testIncompleteContentFails() throws IOException {
+    StreamingUpload upload = new StreamingUpload(executor, service, bucket, new S3Object(bucket, "key"), 10, null,
+                                                 CHUNK_SIZE, QUEUE_LENGTH);
+    upload.write(createContent(5), 0, 5);
+    try {
+      upload.close();
+      fail("content shorter than announced must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+    assertNull(service.getContent("key"));
+  }
+
+  public void testFailedUploadIsReported() throws IOException {
+    service.failNextPut(500);
+    StreamingUpload upload = new StreamingUpload(executor, service, bucket, new S3Object(bucket, "key"), 10, null,
+                                                 CHUNK_SIZE, QUEUE_LENGTH);
+    upload.write(createContent(10), 0, 10);
+    try {
+      upload.close();
+      fail("a failed upload must be reported");
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof S3ServiceException);
+    }
+    assertNull(upload.getStoredObject());
+  }
+
+  private static byte[] createContent(int length) {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; i++) {
+      content[i] = (byte) (i * 31);
+    }
+    return content;
+  }
+}
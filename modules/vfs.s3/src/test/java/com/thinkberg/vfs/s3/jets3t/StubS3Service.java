@@ -0,0 +1,140 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import com.thinkberg.vfs.s3.S3FileName;
+import com.thinkberg.vfs.s3.S3FileNameParser;
+import com.thinkberg.vfs.s3.S3FileSystemConfigBuilder;
+import org.apache.commons.vfs.FileSystemException;
+import org.apache.commons.vfs.FileSystemOptions;
+import org.jets3t.service.S3ServiceException;
+import org.jets3t.service.impl.rest.httpclient.RestS3Service;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+import org.jets3t.service.utils.ServiceUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An S3 service that keeps stored objects in memory instead of sending requests.
+ * Failures can be queued to be thrown by the next uploads.
+ *
+ * @author Matthias L. Jugel
+ */
+class StubS3Service extends RestS3Service {
+  private final Map<String, byte[]> contents = new ConcurrentHashMap<String, byte[]>();
+  private final LinkedList<S3ServiceException> failures = new LinkedList<S3ServiceException>();
+  private int putCount = 0;
+
+  StubS3Service() throws S3ServiceException {
+    super(null);
+  }
+
+  /**
+   * Create a file system for a bucket of this service. Content and journal are kept in
+   * the given directory.
+   *
+   * @param directory the cache directory
+   * @return the file system
+   * @throws FileSystemException if the file system cannot be created
+   */
+  Jets3tFileSystem createFileSystem(File directory) throws FileSystemException {
+    FileSystemOptions options = new FileSystemOptions();
+    S3FileSystemConfigBuilder.getInstance().setCacheDirectory(options, directory);
+    S3FileName fileName = (S3FileName) S3FileNameParser.getInstance().parseUri(null, null, "s3://bucket/");
+    return new Jets3tFileSystem(this, fileName, options);
+  }
+
+  /**
+   * Let the next upload fail with the given response code.
+   *
+   * @param responseCode the HTTP response code
+   */
+  synchronized void failNextPut(int responseCode) {
+    S3ServiceException e = new S3ServiceException(String.format("stub failure %d", responseCode));
+    e.setResponseCode(responseCode);
+    failures.add(e);
+  }
+
+  synchronized int getPutCount() {
+    return putCount;
+  }
+
+  byte[] getContent(String key) {
+    return contents.get(key);
+  }
+
+  public boolean isBucketAccessible(String bucketName) throws S3ServiceException {
+    return true;
+  }
+
+  public S3Object putObject(S3Bucket bucket, S3Object object) throws S3ServiceException {
+    synchronized (this) {
+      putCount++;
+      if (!failures.isEmpty()) {
+        throw failures.removeFirst();
+      }
+    }
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    try {
+      InputStream is = object.getDataInputStream();
+      byte[] buffer = new byte[4096];
+      int count;
+      while ((count = is.read(buffer)) != -1) {
+        content.write(buffer, 0, count);
+      }
+    } catch (IOException e) {
+      throw new S3ServiceException("can't read request body", e);
+    }
+    contents.put(object.getKey(), content.toByteArray());
+    S3Object stored = new S3Object(bucket, object.getKey());
+    stored.setContentLength(content.size());
+    stored.setETag(md5(content.toByteArray()));
+    return stored;
+  }
+
+  static String md5(byte[] content) {
+    try {
+      return ServiceUtils.toHex(MessageDigest.getInstance("MD5").digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 not available", e);
+    }
+  }
+
+  static void deleteAll(File directory) {
+    File[] files = directory.listFiles();
+    if (null != files) {
+      for (File file : files) {
+        if (file.isDirectory()) {
+          deleteAll(file);
+        } else {
+          file.delete();
+        }
+      }
+    }
+    directory.delete();
+  }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.thinkberg.vfs.s3.jets3t;
+
+import junit.framework.TestCase;
+import org.jets3t.service.Constants;
+import org.jets3t.service.model.S3Bucket;
+import org.jets3t.service.model.S3Object;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * @author Matthias L. Jugel
+ */
+public class WriteBehindQueueTest extends TestCase {
+  private static final String VERSION = Constants.REST_METADATA_PREFIX + "version";
+
+  private File directory;
+  private File journal;
+  private StubS3Service service;
+  private S3Bucket bucket;
+  private Jets3tFileSystem fileSystem;
+  private ExecutorService executor;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("moxotest.", ".cache");
+    directory.delete();
+    journal = new File(directory, "writebehind");
+    service = new StubS3Service();
+    bucket = new S3Bucket("bucket");
+    fileSystem = service.createFileSystem(directory);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    fileSystem.close();
+    StubS3Service.deleteAll(directory);
+    super.tearDown();
+  }
+
+  public void testNewerVersionSupersedesWaitingOne() throws IOException {
+    WriteBehindQueue queue = new WriteBehindQueue(fileSystem, service, bucket, journal);
+    enqueue(queue, "key", "1");
+    enqueue(queue, "key", "2");
+    assertEquals("2", queue.getPendingDetails("key").getMetadata(VERSION));
+    assertEquals(1, queue.getPendingCount());
+    assertEquals(1, queue.getSupersededCount());
+    assertEquals(1, countJournalEntries());
+  }
+
+  public void testReplayKeepsTheVersionThatWon() throws Exception {
+    final WriteBehindQueue queue = new WriteBehindQueue(fileSystem, service, bucket, journal);
+    List<Thread> writers = new ArrayList<Thread>();
+    for (int i = 0; i < 8; i++) {
+      final String version = String.valueOf(i);
+      Thread writer = new Thread() {
+        public void run() {
+          try {
+            for (int round = 0; round < 10; round++) {
+              enqueue(queue, "key", version);
+            }
+          } catch (IOException e) {
+            fail(e.getMessage());
+          }
+        }
+      };
+      writers.add(writer);
+      writer.start();
+    }
+    for (Thread writer : writers) {
+      writer.join();
+    }
+
+    Object winner = queue.getPendingDetails("key").getMetadata(VERSION);
+    WriteBehindQueue replayed = new WriteBehindQueue(fileSystem, service, bucket, journal);
+    assertEquals(winner, replayed.getPendingDetails("key").getMetadata(VERSION));
+    assertEquals(1, countJournalEntries());
+  }
+
+  public void testReplayedEntryIsUploaded() throws IOException {
+    WriteBehindQueue queue = new WriteBehindQueue(fileSystem, service, bucket, journal);
+    enqueue(queue, "key", "1");
+    queue.close();
+
+    WriteBehindQueue replayed = new WriteBehindQueue(fileSystem, service, bucket, journal);
+    replayed.start(executor, 1);
+    replayed.await("key");
+    assertEquals("1", new String(service.getContent("key")));
+    assertEquals(1, replayed.getUploadCount());
+    assertNull(replayed.getPendingDetails("key"));
+    assertEquals(0, countJournalEntries());
+  }
+
+  public void testCancelDropsPendingUpload() throws IOException {
+    WriteBehindQueue queue = new WriteBehindQueue(fileSystem, service, bucket, journal);
+    enqueue(queue, "key", "1");
+    queue.cancel("key");
+    assertNull(queue.getPendingDetails("key"));
+    assertEquals(0, countJournalEntries());
+
+    queue.start(executor, 1);
+    enqueue(queue, "other", "1");
+    queue.await("other");
+    assertEquals(1, service.getPutCount());
+  }
+
+  public void testPermanentFailureIsGivenUp() throws IOException {
+    service.failNextPut(403);
+    WriteBehindQueue queue = new WriteBehindQueue(fileSystem, service, bucket, journal);
+    queue.start(executor, 1);
+    enqueue(queue, "key", "1");
+    queue.await("key");
+    assertEquals(1, service.getPutCount());
+    assertEquals(1, queue.getAbandonedCount());
+    assertNull(queue.getPendingDetails("key"));
+    // the content is kept for the next start
+    assertEquals(1, countJournalEntries());
+    queue.close();
+
+    WriteBehindQueue replayed = new WriteBehindQueue(fileSystem, service, bucket, journal);
+    replayed.start(executor, 1);
+    replayed.await("key");
+    assertEquals("1", new String(service.getContent("key")));
+  }
+
+  public void testServerErrorIsRetried() throws IOException {
+    service.failNextPut(503);
+    WriteBehindQueue queue = new WriteBehindQueue(fileSystem, service, bucket, journal);
+    queue.start(executor, 1);
+    enqueue(queue, "key", "1");
+    queue.await("key");
+    assertEquals(2, service.getPutCount());
+    assertEquals(1, queue.getFailureCount());
+    assertEquals(0, queue.getAbandonedCount());
+    assertEquals("1", new String(service.getContent("key")));
+  }
+
+  private void enqueue(WriteBehindQueue queue, String key, String version) throws IOException {
+    File spoolFile = queue.createSpoolFile();
+    OutputStream os = new FileOutputStream(spoolFile);
+    try {
+      os.write(version.getBytes());
+    } finally {
+      os.close();
+    }
+    S3Object object = new S3Object(bucket, key);
+    object.addMetadata(VERSION, version);
+    queue.enqueue(object, spoolFile);
+  }
+
+  private int countJournalEntries() {
+    int count = 0;
+    for (String name : journal.list()) {
+      if (name.endsWith(".journal")) {
+        count++;
+      }
+    }
+    return count;
+  }
+}
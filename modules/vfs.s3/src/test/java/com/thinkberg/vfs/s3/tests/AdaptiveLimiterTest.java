@@ -0,0 +1,125 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.tests;
+
+import com.thinkberg.vfs.s3.jets3t.AdaptiveLimiter;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Matthias L. Jugel
+ */
+public class AdaptiveLimiterTest extends TestCase {
+  public void testLimitIsEnforced() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(2, 1, 10);
+    AdaptiveLimiter.Permit first = limiter.acquire(0);
+    AdaptiveLimiter.Permit second = limiter.acquire(0);
+    assertNotNull(first);
+    assertNotNull(second);
+    assertNull(limiter.acquire(10));
+    assertEquals(1L, limiter.getStatistics().get("limiter.rejected"));
+
+    first.ignored();
+    assertNotNull(limiter.acquire(0));
+  }
+
+  public void testWaitingCallerGetsReleasedPermit() throws InterruptedException {
+    final AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1);
+    final AdaptiveLimiter.Permit permit = limiter.acquire(0);
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          // release early
+        }
+        permit.success();
+      }
+    }.start();
+    assertNotNull(limiter.acquire(5000));
+  }
+
+  public void testLimitGrowsAdditively() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(4, 1, 100);
+    for (int round = 0; round < 4; round++) {
+      runFullWindow(limiter);
+    }
+    // at most one more per window
+    assertTrue(limiter.getLimit() > 4);
+    assertTrue(limiter.getLimit() <= 8);
+  }
+
+  public void testLimitIsCutOnThrottling() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(16, 1, 100);
+    limiter.acquire(0).dropped();
+    assertEquals(8, limiter.getLimit());
+    limiter.acquire(0).dropped();
+    assertEquals(4, limiter.getLimit());
+  }
+
+  public void testBurstOfThrottlingCutsOnce() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(16, 1, 100);
+    List<AdaptiveLimiter.Permit> permits = new ArrayList<AdaptiveLimiter.Permit>();
+    for (int i = 0; i < 10; i++) {
+      permits.add(limiter.acquire(0));
+    }
+    for (AdaptiveLimiter.Permit permit : permits) {
+      permit.dropped();
+    }
+    assertEquals(8, limiter.getLimit());
+    assertEquals(10L, limiter.getStatistics().get("limiter.dropped"));
+  }
+
+  public void testLimitStaysWithinBounds() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(2, 2, 3);
+    for (int round = 0; round < 10; round++) {
+      runFullWindow(limiter);
+    }
+    assertEquals(3, limiter.getLimit());
+    for (int i = 0; i < 5; i++) {
+      limiter.acquire(0).dropped();
+    }
+    assertEquals(2, limiter.getLimit());
+  }
+
+  public void testReleasingTwiceCountsOnce() throws InterruptedException {
+    AdaptiveLimiter limiter = new AdaptiveLimiter(1, 1, 1);
+    AdaptiveLimiter.Permit permit = limiter.acquire(0);
+    permit.success();
+    permit.ignored();
+    assertNotNull(limiter.acquire(0));
+    assertNull(limiter.acquire(0));
+  }
+
+  /**
+   * Use the full limit and let all requests succeed.
+   *
+   * @param limiter the limiter
+   * @throws InterruptedException if interrupted
+   */
+  private void runFullWindow(AdaptiveLimiter limiter) throws InterruptedException {
+    List<AdaptiveLimiter.Permit> permits = new ArrayList<AdaptiveLimiter.Permit>();
+    for (int i = limiter.getLimit(); i > 0; i--) {
+      permits.add(limiter.acquire(0));
+    }
+    for (AdaptiveLimiter.Permit permit : permits) {
+      permit.success();
+    }
+  }
+}
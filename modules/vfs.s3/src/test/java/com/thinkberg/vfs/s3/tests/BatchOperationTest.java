@@ -0,0 +1,124 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.tests;
+
+import com.thinkberg.vfs.s3.jets3t.BatchOperation;
+import junit.framework.TestCase;
+import org.jets3t.service.S3ServiceException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Matthias L. Jugel
+ */
+public class BatchOperationTest extends TestCase {
+  private ExecutorService executor;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    executor = Executors.newCachedThreadPool();
+  }
+
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    super.tearDown();
+  }
+
+  public void testConcurrencyIsBounded() throws InterruptedException {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    BatchOperation<Integer> operation = new BatchOperation<Integer>(executor, 4, 0) {
+      protected void execute(Integer item) throws Exception {
+        int current = running.incrementAndGet();
+        synchronized (maxRunning) {
+          maxRunning.set(Math.max(maxRunning.get(), current));
+        }
+        Thread.sleep(5);
+        running.decrementAndGet();
+      }
+    };
+
+    List<Integer> items = new ArrayList<Integer>();
+    for (int i = 0; i < 40; i++) {
+      items.add(i);
+    }
+    BatchOperation.Result<Integer> result = operation.run(items);
+    assertEquals(40, result.getSucceededCount());
+    assertFalse(result.hasFailures());
+    assertTrue(maxRunning.get() <= 4);
+  }
+
+  public void testFailedItemIsRetried() throws InterruptedException {
+    final AtomicInteger attempts = new AtomicInteger();
+    BatchOperation<String> operation = new BatchOperation<String>(executor, 2, 2) {
+      protected void execute(String item) throws Exception {
+        if ("flaky".equals(item) && attempts.incrementAndGet() < 3) {
+          throw new IOException("try again");
+        }
+      }
+    };
+
+    BatchOperation.Result<String> result = operation.run(Arrays.asList("a", "flaky", "b"));
+    assertEquals(3, result.getSucceededCount());
+    assertEquals(2, result.getRetryCount());
+    assertFalse(result.hasFailures());
+  }
+
+  public void testPartialFailureIsReported() throws InterruptedException {
+    BatchOperation<String> operation = new BatchOperation<String>(executor, 2, 1) {
+      protected void execute(String item) throws Exception {
+        if (item.startsWith("bad")) {
+          throw new IOException(item);
+        }
+      }
+
+      protected boolean isRetryable(Exception e) {
+        return false;
+      }
+    };
+
+    BatchOperation.Result<String> result = operation.run(Arrays.asList("a", "bad1", "b", "bad2"));
+    assertEquals(2, result.getSucceededCount());
+    assertEquals(0, result.getRetryCount());
+    assertEquals(2, result.getFailures().size());
+    assertTrue(result.getFailures().containsKey("bad1"));
+    assertTrue(result.getFailures().containsKey("bad2"));
+  }
+
+  public void testClientErrorsAreNotRetried() throws InterruptedException {
+    final AtomicInteger attempts = new AtomicInteger();
+    BatchOperation<Integer> operation = new BatchOperation<Integer>(executor, 2, 3) {
+      protected void execute(Integer item) throws Exception {
+        attempts.incrementAndGet();
+        S3ServiceException e = new S3ServiceException(String.format("failed with %d", item));
+        e.setResponseCode(item);
+        throw e;
+      }
+    };
+
+    BatchOperation.Result<Integer> result = operation.run(Arrays.asList(301, 403, 404));
+    assertEquals(3, attempts.get());
+    assertEquals(0, result.getRetryCount());
+    assertEquals(3, result.getFailures().size());
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.tests;
+
+import com.thinkberg.vfs.s3.cache.BlockCache;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * @author Matthias L. Jugel
+ */
+public class BlockCacheTest extends TestCase {
+  private File directory;
+  private int loads;
+
+  private final BlockCache.BlockLoader loader = new BlockCache.BlockLoader() {
+    public void load(long index, File file) throws IOException {
+      loads++;
+      FileOutputStream os = new FileOutputStream(file);
+      os.write(new byte[10]);
+      os.close();
+    }
+  };
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("moxotest.", ".blocks");
+    directory.delete();
+    loads = 0;
+  }
+
+  protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  public void testMissingBlockIsLoadedOnce() throws IOException {
+    BlockCache cache = new BlockCache(directory, 10, 100);
+    File block = cache.getBlock("key", "etag", 3, loader);
+    assertEquals(10, block.length());
+    assertEquals(block, cache.getBlock("key", "etag", 3, loader));
+    assertEquals(1, loads);
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testOtherETagLoadsAgain() throws IOException {
+    BlockCache cache = new BlockCache(directory, 10, 100);
+    cache.getBlock("key", "etag1", 0, loader);
+    cache.getBlock("key", "etag1", 1, loader);
+    cache.getBlock("key", "etag2", 0, loader);
+    assertEquals(3, loads);
+    // the blocks of the old version are gone
+    assertEquals(10, cache.getSize());
+  }
+
+  public void testLeastRecentlyUsedBlockIsEvicted() throws IOException {
+    BlockCache cache = new BlockCache(directory, 10, 20);
+    cache.getBlock("key", "etag", 0, loader);
+    cache.getBlock("key", "etag", 1, loader);
+    cache.getBlock("key", "etag", 0, loader);
+    cache.getBlock("key", "etag", 2, loader);
+    assertEquals(1, cache.getEvictionCount());
+    cache.getBlock("key", "etag", 0, loader);
+    assertEquals(3, loads);
+    cache.getBlock("key", "etag", 1, loader);
+    assertEquals(4, loads);
+  }
+
+  public void testRemove() throws IOException {
+    BlockCache cache = new BlockCache(directory, 10, 100);
+    File block = cache.getBlock("key", "etag", 0, loader);
+    cache.remove("key");
+    assertFalse(block.exists());
+    assertEquals(0, cache.getSize());
+  }
+
+  public void testBlocksSurviveRestart() throws IOException {
+    BlockCache cache = new BlockCache(directory, 10, 100);
+    cache.getBlock("key", "etag", 5, loader);
+
+    BlockCache restartedCache = new BlockCache(directory, 10, 100);
+    restartedCache.getBlock("key", "etag", 5, loader);
+    assertEquals(1, loads);
+    assertEquals(10, restartedCache.getSize());
+  }
+}
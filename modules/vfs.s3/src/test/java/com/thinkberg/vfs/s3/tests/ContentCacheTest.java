@@ -0,0 +1,237 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.tests;
+
+import com.thinkberg.vfs.s3.cache.CacheFill;
+import com.thinkberg.vfs.s3.cache.ContentCache;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * @author Matthias L. Jugel
+ */
+public class ContentCacheTest extends TestCase {
+  private File directory;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    directory = File.createTempFile("moxotest.", ".cache");
+    directory.delete();
+  }
+
+  protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  public void testMissAndHit() throws IOException {
+    ContentCache cache = new ContentCache(directory, 1024);
+    assertNull(cache.get("key", "etag"));
+    File file = cache.put("key", "etag", createContent(cache, 10));
+    assertEquals(file, cache.get("key", "etag"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testContainsDoesNotCount() throws IOException {
+    ContentCache cache = new ContentCache(directory, 1024);
+    assertFalse(cache.contains("key", "etag"));
+    cache.put("key", "etag", createContent(cache, 10));
+    assertTrue(cache.contains("key", "etag"));
+    assertFalse(cache.contains("key", "other"));
+    assertEquals(0, cache.getHitCount());
+    assertEquals(0, cache.getMissCount());
+  }
+
+  public void testOtherETagMisses() throws IOException {
+    ContentCache cache = new ContentCache(directory, 1024);
+    cache.put("key", "etag", createContent(cache, 10));
+    assertNull(cache.get("key", "other"));
+  }
+
+  public void testNewVersionReplacesOld() throws IOException {
+    ContentCache cache = new ContentCache(directory, 1024);
+    cache.put("key", "etag1", createContent(cache, 10));
+    cache.put("key", "etag2", createContent(cache, 20));
+    assertNull(cache.get("key", "etag1"));
+    assertEquals(20, cache.getSize());
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() throws IOException {
+    ContentCache cache = new ContentCache(directory, 100);
+    cache.put("a", "etag", createContent(cache, 40));
+    cache.put("b", "etag", createContent(cache, 40));
+    cache.get("a", "etag");
+    cache.put("c", "etag", createContent(cache, 40));
+    assertNotNull(cache.get("a", "etag"));
+    assertNull(cache.get("b", "etag"));
+    assertNotNull(cache.get("c", "etag"));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(80, cache.getSize());
+  }
+
+  public void testOversizedEntryIsKept() throws IOException {
+    ContentCache cache = new ContentCache(directory, 100);
+    cache.put("a", "etag", createContent(cache, 40));
+    File file = cache.put("b", "etag", createContent(cache, 200));
+    assertTrue(file.exists());
+    assertNull(cache.get("a", "etag"));
+  }
+
+  public void testRemove() throws IOException {
+    ContentCache cache = new ContentCache(directory, 1024);
+    File file = cache.put("key", "etag", createContent(cache, 10));
+    cache.remove("key");
+    assertFalse(file.exists());
+    assertNull(cache.get("key", "etag"));
+    assertEquals(0, cache.getSize());
+  }
+
+  public void testEntriesSurviveRestart() throws IOException {
+    ContentCache cache = new ContentCache(directory, 1024);
+    cache.put("key", "etag", createContent(cache, 10));
+    File tempFile = cache.createTempFile();
+
+    ContentCache restartedCache = new ContentCache(directory, 1024);
+    assertNotNull(restartedCache.get("key", "etag"));
+    assertEquals(10, restartedCache.getSize());
+    assertFalse("temporary files must be removed", tempFile.exists());
+  }
+
+  public void testFillResumesBrokenStream() throws IOException {
+    ContentCache cache = new ContentCache(directory, 1024);
+    final byte[] content = new byte[100];
+    for (int i = 0; i < content.length; i++) {
+      content[i] = (byte) i;
+    }
+    CacheFill fill = new CacheFill(cache, "key", "etag", content.length, new BreakingInputStream(content, 0, 30),
+                                   new CacheFill.RangeSource() {
+                                     public InputStream open(long position) throws IOException {
+                                       return new BreakingInputStream(content, (int) position, 40);
+                                     }
+                                   });
+    fill.run();
+
+    InputStream is = fill.openStream();
+    for (byte expected : content) {
+      assertEquals(expected & 0xff, is.read());
+    }
+    assertEquals(-1, is.read());
+    is.close();
+    assertNotNull(cache.get("key", "etag"));
+  }
+
+  public void testFillFailsWithoutRangeSource() throws IOException {
+    ContentCache cache = new ContentCache(directory, 1024);
+    CacheFill fill = new CacheFill(cache, "key", "etag", 100, new BreakingInputStream(new byte[100], 0, 30));
+    fill.run();
+    try {
+      fill.openStream();
+      fail("a broken fill must not be read");
+    } catch (IOException e) {
+      // expected
+    }
+    assertNull(cache.get("key", "etag"));
+  }
+
+  public void testOversizedFillIsNotCached() throws IOException {
+    ContentCache cache = new ContentCache(directory, 100);
+    cache.put("other", "etag", createContent(cache, 40));
+    byte[] content = new byte[200];
+    CacheFill fill = new CacheFill(cache, "key", "etag", content.length, new ByteArrayInputStream(content));
+    InputStream is = fill.openStream();
+    fill.run();
+    long count = 0;
+    while (is.read() != -1) {
+      count++;
+    }
+    is.close();
+    assertEquals("readers must get the content anyway", content.length, count);
+    assertNull(cache.get("key", "etag"));
+    assertNotNull(cache.get("other", "etag"));
+    assertEquals(40, cache.getSize());
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  public void testUnexpectedFailureReleasesReaders() throws Exception {
+    ContentCache cache = new ContentCache(directory, 1024);
+    final CacheFill fill = new CacheFill(cache, "key", "etag", 100, new InputStream() {
+      public int read() throws IOException {
+        throw new IllegalStateException("unexpected");
+      }
+    });
+    InputStream is = fill.openStream();
+    Thread filler = new Thread(fill);
+    filler.start();
+    try {
+      is.read();
+      fail("a failed fill must not be read");
+    } catch (IOException e) {
+      // expected, instead of waiting forever
+    }
+    filler.join();
+    is.close();
+    assertTrue(fill.isDone());
+    assertNull(cache.get("key", "etag"));
+  }
+
+  private File createContent(ContentCache cache, int length) throws IOException {
+    File file = cache.createTempFile();
+    FileOutputStream os = new FileOutputStream(file);
+    os.write(new byte[length]);
+    os.close();
+    return file;
+  }
+
+  /**
+   * A stream that fails like a dropped connection after a number of bytes.
+   */
+  private static class BreakingInputStream extends InputStream {
+    private final InputStream content;
+    private int remaining;
+
+    BreakingInputStream(byte[] content, int offset, int breakAfter) {
+      this.content = new ByteArrayInputStream(content, offset, content.length - offset);
+      this.remaining = breakAfter;
+    }
+
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining == 0 && content.available() > 0) {
+        throw new IOException("connection reset");
+      }
+      int count = content.read(b, off, Math.min(len, Math.max(1, remaining)));
+      remaining -= Math.max(0, count);
+      return count;
+    }
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.tests;
+
+import com.thinkberg.vfs.s3.cache.ExpiringCache;
+import junit.framework.TestCase;
+
+import java.util.Set;
+
+/**
+ * @author Matthias L. Jugel
+ */
+public class ExpiringCacheTest extends TestCase {
+  private long time;
+
+  protected void setUp() throws Exception {
+    super.setUp();
+    time = 1000;
+  }
+
+  public void testHitAndMiss() {
+    ExpiringCache<String> cache = createCache(100, 10);
+    assertNull(cache.get("a"));
+    cache.put("a", "value");
+    assertEquals("value", cache.get("a"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testEntryExpires() {
+    ExpiringCache<String> cache = createCache(100, 10);
+    cache.put("a", "value");
+    time += 99;
+    assertEquals("value", cache.get("a"));
+    time += 1;
+    assertNull(cache.get("a"));
+    assertEquals(1, cache.getExpirationCount());
+    assertEquals(0, cache.size());
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() {
+    ExpiringCache<String> cache = createCache(100, 2);
+    cache.put("a", "a");
+    cache.put("b", "b");
+    cache.get("a");
+    cache.put("c", "c");
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  public void testRemoveByPrefix() {
+    ExpiringCache<String> cache = createCache(100, 10);
+    cache.put("folder", "folder");
+    cache.put("folder/a", "a");
+    cache.put("folder/b/c", "c");
+    cache.put("other", "other");
+    assertEquals(2, cache.removeByPrefix("folder/"));
+    assertNotNull(cache.get("folder"));
+    assertNotNull(cache.get("other"));
+    assertNull(cache.get("folder/a"));
+  }
+
+  public void testGetKeysByPrefix() {
+    ExpiringCache<String> cache = createCache(100, 10);
+    cache.put("folder", "folder");
+    cache.put("folder/a", "a");
+    time += 50;
+    cache.put("folder/b/c", "c");
+    cache.put("other", "other");
+    assertEquals(3, cache.getKeys("folder").size());
+    time += 50;
+    Set<String> keys = cache.getKeys("folder/");
+    assertEquals(1, keys.size());
+    assertTrue(keys.contains("folder/b/c"));
+  }
+
+  public void testZeroTimeToLiveDisablesCache() {
+    ExpiringCache<String> cache = createCache(0, 10);
+    cache.put("a", "value");
+    assertNull(cache.get("a"));
+  }
+
+  private ExpiringCache<String> createCache(long timeToLive, int maxEntries) {
+    return new ExpiringCache<String>(timeToLive, maxEntries) {
+      protected long now() {
+        return time;
+      }
+    };
+  }
+}
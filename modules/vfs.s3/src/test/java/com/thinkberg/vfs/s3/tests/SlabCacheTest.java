@@ -0,0 +1,172 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.vfs.s3.tests;
+
+import com.thinkberg.vfs.s3.cache.SlabCache;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * @author Matthias L. Jugel
+ */
+public class SlabCacheTest extends TestCase {
+  private static final int PAGE = SlabCache.PAGE_SIZE;
+
+  public void testHitAndMiss() throws IOException {
+    SlabCache cache = new SlabCache(16 * PAGE, 4 * PAGE);
+    byte[] content = createContent(PAGE * 2 + 17);
+    assertNull(cache.get("a", "1"));
+    assertTrue(cache.put("a", "1", content));
+    assertTrue(Arrays.equals(content, read(cache, "a", "1")));
+    assertEquals(3 * PAGE, cache.getSize());
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  public void testOtherVersionMisses() throws IOException {
+    SlabCache cache = new SlabCache(16 * PAGE, 4 * PAGE);
+    cache.put("a", "1", createContent(10));
+    assertTrue(cache.contains("a", "1"));
+    assertFalse(cache.contains("a", "2"));
+    assertNull(cache.get("a", "2"));
+    cache.put("a", "2", createContent(20));
+    assertNull(cache.get("a", "1"));
+    assertEquals(20, read(cache, "a", "2").length);
+    assertEquals(PAGE, cache.getSize());
+  }
+
+  public void testOnlySmallContentIsAccepted() {
+    SlabCache cache = new SlabCache(16 * PAGE, 4 * PAGE);
+    assertTrue(cache.accepts(0));
+    assertTrue(cache.accepts(4 * PAGE));
+    assertFalse(cache.accepts(4 * PAGE + 1));
+    assertFalse(cache.put("a", "1", createContent(4 * PAGE + 1)));
+    assertFalse(cache.put("a", null, createContent(10)));
+    assertEquals(0, cache.getSize());
+  }
+
+  public void testLeastRecentlyUsedIsEvicted() throws IOException {
+    SlabCache cache = new SlabCache(4 * PAGE, 4 * PAGE);
+    byte[] a = createContent(PAGE + 1);
+    byte[] c = createContent(2 * PAGE);
+    cache.put("a", "1", a);
+    cache.put("b", "1", createContent(PAGE));
+    read(cache, "a", "1");
+    cache.put("c", "1", c);
+    assertNull(cache.get("b", "1"));
+    assertTrue(Arrays.equals(a, read(cache, "a", "1")));
+    assertTrue(Arrays.equals(c, read(cache, "c", "1")));
+    assertEquals(1, cache.getEvictionCount());
+    assertEquals(4 * PAGE, cache.getSize());
+  }
+
+  public void testRemove() {
+    SlabCache cache = new SlabCache(4 * PAGE, 4 * PAGE);
+    cache.put("a", "1", createContent(3 * PAGE));
+    cache.remove("a");
+    assertNull(cache.get("a", "1"));
+    assertEquals(0, cache.getSize());
+    assertTrue(cache.put("b", "1", createContent(4 * PAGE)));
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  public void testEvictedContentStaysReadable() throws IOException {
+    SlabCache cache = new SlabCache(4 * PAGE, 4 * PAGE);
+    byte[] a = createContent(3 * PAGE);
+    cache.put("a", "1", a);
+    InputStream is = cache.get("a", "1");
+    assertFalse("pages being read must not be reused", cache.put("b", "1", createContent(2 * PAGE)));
+    assertNull(cache.get("a", "1"));
+    assertTrue(Arrays.equals(a, readFully(is)));
+    assertEquals(0, cache.getSize());
+    assertTrue(cache.put("b", "1", createContent(2 * PAGE)));
+  }
+
+  public void testAbortedReaderReleasesPages() throws IOException {
+    SlabCache cache = new SlabCache(4 * PAGE, 4 * PAGE);
+    cache.put("a", "1", createContent(3 * PAGE));
+    InputStream is = cache.get("a", "1");
+    try {
+      is.read(new byte[PAGE]);
+      throw new IOException("connection reset by peer");
+    } catch (IOException e) {
+      // the client went away in the middle of the response
+    } finally {
+      cache.put("a", "2", createContent(PAGE));
+      assertEquals("replaced pages stay in use while being read", 4 * PAGE, cache.getSize());
+      is.close();
+    }
+    assertEquals(PAGE, cache.getSize());
+    is.close();
+    assertEquals(PAGE, cache.getSize());
+    assertTrue(cache.put("b", "1", createContent(3 * PAGE)));
+    assertEquals(0, cache.getEvictionCount());
+  }
+
+  public void testMarkAndReset() throws IOException {
+    SlabCache cache = new SlabCache(4 * PAGE, 4 * PAGE);
+    byte[] content = createContent(2 * PAGE + 3);
+    cache.put("a", "1", content);
+    InputStream is = cache.get("a", "1");
+    assertTrue(is.markSupported());
+    assertEquals(PAGE + 1, is.skip(PAGE + 1));
+    is.mark(0);
+    assertEquals(content[PAGE + 1] & 0xff, is.read());
+    is.reset();
+    byte[] rest = new byte[PAGE + 2];
+    assertEquals(PAGE + 2, is.read(rest, 0, rest.length));
+    for (int i = 0; i < rest.length; i++) {
+      assertEquals(content[PAGE + 1 + i], rest[i]);
+    }
+    assertEquals(-1, is.read());
+    is.close();
+  }
+
+  public void testDisabled() {
+    SlabCache cache = new SlabCache(0, 4 * PAGE);
+    assertFalse(cache.accepts(0));
+    assertFalse(cache.put("a", "1", new byte[0]));
+  }
+
+  private byte[] read(SlabCache cache, String key, String eTag) throws IOException {
+    InputStream is = cache.get(key, eTag);
+    return null == is ? null : readFully(is);
+  }
+
+  private byte[] readFully(InputStream is) throws IOException {
+    ByteArrayOutputStream os = new ByteArrayOutputStream();
+    byte[] buffer = new byte[100];
+    int count;
+    while ((count = is.read(buffer)) != -1) {
+      os.write(buffer, 0, count);
+    }
+    is.close();
+    return os.toByteArray();
+  }
+
+  private byte[] createContent(int length) {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; i++) {
+      content[i] = (byte) (i * 31 + length);
+    }
+    return content;
+  }
+}
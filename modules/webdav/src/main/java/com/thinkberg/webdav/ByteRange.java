@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.webdav;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A byte range of an HTTP Range request header (RFC 2616, section 14.35).
+ *
+ * @author Matthias L. Jugel
+ */
+public class ByteRange {
+  private static final String BYTES_UNIT = "bytes=";
+
+  private final long start;
+  private final long end;
+
+  public ByteRange(long start, long end) {
+    this.start = start;
+    this.end = end;
+  }
+
+  /**
+   * Parse a Range header for content of the given length. Ranges reaching beyond the
+   * end of the content are shortened, ranges starting behind the end are dropped.
+   *
+   * @param header the Range header value
+   * @param length the content length
+   * @return the satisfiable ranges, an empty list if no range is satisfiable or null if
+   *         the header is invalid and must be ignored
+   */
+  public static List<ByteRange> parse(String header, long length) {
+    if (null == header || !header.trim().startsWith(BYTES_UNIT)) {
+      return null;
+    }
+
+    List<ByteRange> ranges = new ArrayList<ByteRange>();
+    String[] specs = header.trim().substring(BYTES_UNIT.length()).split(",");
+    for (String spec : specs) {
+      spec = spec.trim();
+      int dash = spec.indexOf('-');
+      if (dash == -1) {
+        return null;
+      }
+      try {
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        if ("".equals(first)) {
+          // suffix range, the last n bytes
+          long suffixLength = Long.parseLong(last);
+          if (suffixLength < 0) {
+            return null;
+          }
+          if (suffixLength > 0 && length > 0) {
+            ranges.add(new ByteRange(Math.max(0, length - suffixLength), length - 1));
+          }
+        } else {
+          long start = Long.parseLong(first);
+          long end = "".equals(last) ? Long.MAX_VALUE : Long.parseLong(last);
+          if (start < 0 || end < start) {
+            return null;
+          }
+          if (start < length) {
+            ranges.add(new ByteRange(start, Math.min(end, length - 1)));
+          }
+        }
+      } catch (NumberFormatException e) {
+        return null;
+      }
+    }
+    return ranges;
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getEnd() {
+    return end;
+  }
+
+  public long getLength() {
+    return end - start + 1;
+  }
+
+  /**
+   * Get the value of the Content-Range header for this range.
+   *
+   * @param length the content length
+   * @return the Content-Range header value
+   */
+  public String getContentRange(long length) {
+    return String.format("bytes %d-%d/%d", start, end, length);
+  }
+
+  public boolean equals(Object o) {
+    return o instanceof ByteRange && ((ByteRange) o).start == start && ((ByteRange) o).end == end;
+  }
+
+  public int hashCode() {
+    return (int) (start ^ end);
+  }
+
+  public String toString() {
+    return start + "-" + end;
+  }
+}
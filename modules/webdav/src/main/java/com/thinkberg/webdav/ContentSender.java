@@ -0,0 +1,41 @@
+/*
+ * Copyright 2009 Matthias L. Jugel.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.thinkberg.webdav;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sends content that is available as a local file without copying it through the
+ * heap. The servlet API only offers an output stream, so sending a file directly
+ * depends on the servlet container.
+ *
+ * @author Matthias L. Jugel
+ */
+public interface ContentSender {
+  /**
+   * Send the content of a file as the complete response body.
+   *
+   * @param response the response, its headers are already set
+   * @param channel  the file channel, it is closed by the caller
+   * @param length   the number of bytes to send from the beginning of the file
+   * @return true if the content has been sent, false if it must be copied instead
+   * @throws IOException if sending fails
+   */
+  boolean send(HttpServletResponse response, FileChannel channel, long length) throws IOException;
+}
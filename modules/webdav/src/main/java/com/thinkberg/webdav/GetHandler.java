@@ -17,22 +17,41 @@
 package com.thinkberg.webdav;
 
 import com.thinkberg.webdav.vfs.VFSBackend;
+import org.apache.commons.vfs.Capability;
 import org.apache.commons.vfs.FileContent;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.FileType;
+import org.apache.commons.vfs.RandomAccessContent;
+import org.apache.commons.vfs.util.RandomAccessMode;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
 
 /**
  * @author Matthias L. Jugel
  * @version $Id$
  */
 public class GetHandler extends WebdavHandler {
+  private static final String MULTIPART_BOUNDARY = "MOXO_BYTERANGE_BOUNDARY";
+
+  private ContentSender contentSender = null;
+
+  /**
+   * Set how content available as a local file is sent. Without a sender all content is
+   * copied to the response stream.
+   *
+   * @param contentSender the sender, may be null
+   */
+  public void setContentSender(ContentSender contentSender) {
+    this.contentSender = contentSender;
+  }
 
   public void service(HttpServletRequest request, HttpServletResponse response) throws IOException {
     FileObject object = VFSBackend.resolveFile(request.getPathInfo());
@@ -43,12 +62,33 @@ public class GetHandler extends WebdavHandler {
         return;
       }
 
-      setHeader(response, object.getContent());
+      FileContent content = object.getContent();
+      setHeader(response, content);
 
-      InputStream is = object.getContent().getInputStream();
-      OutputStream os = response.getOutputStream();
-      Util.copyStream(is, os);
-      is.close();
+      long length = content.getSize();
+      List<ByteRange> ranges = null;
+      if (isRangeApplicable(request, content)) {
+        ranges = ByteRange.parse(request.getHeader("Range"), length);
+      }
+
+      if (null == ranges) {
+        response.setHeader("Content-Length", String.valueOf(length));
+        InputStream is = content.getInputStream();
+        try {
+          FileChannel channel = null == contentSender ? null : VFSBackend.getRequestContentChannel(object);
+          if (null == channel || !contentSender.send(response, channel, length)) {
+            Util.copyStream(is, response.getOutputStream());
+          }
+        } finally {
+          // an aborted response must still release cached content held by the stream
+          is.close();
+        }
+      } else if (ranges.isEmpty()) {
+        response.setHeader("Content-Range", "bytes */" + length);
+        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+      } else {
+        sendRanges(response, content, ranges);
+      }
     } else {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
     }
@@ -58,7 +98,113 @@ public class GetHandler extends WebdavHandler {
     response.setHeader("Last-Modified", Util.getDateString(content.getLastModifiedTime()));
     response.setHeader("Content-Type", content.getContentInfo().getContentType());
     response.setHeader("ETag", Util.getETag(content.getFile()));
+    response.setHeader("Accept-Ranges", "bytes");
+  }
+
+  /**
+   * Check whether a Range header must be honored. An If-Range header makes the
+   * range conditional on the entity tag or modification date of the resource.
+   *
+   * @param request the request
+   * @param content the resource content
+   * @return true if the requested ranges are to be sent
+   * @throws FileSystemException if the modification time is not available
+   */
+  private boolean isRangeApplicable(HttpServletRequest request, FileContent content) throws FileSystemException {
+    if (null == request.getHeader("Range")) {
+      return false;
+    }
+    String ifRange = request.getHeader("If-Range");
+    if (null == ifRange) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("W/")) {
+      // weak entity tags must not be used for ranges
+      return false;
+    }
+    if (ifRange.startsWith("\"")) {
+      return ifRange.equals("\"" + Util.getETag(content.getFile()) + "\"");
+    }
+    return ifRange.equals(Util.getETag(content.getFile())) ||
+           ifRange.equals(Util.getDateString(content.getLastModifiedTime()));
   }
 
+  /**
+   * Send a 206 Partial Content response. A single range is sent as is, multiple ranges
+   * are sent as multipart/byteranges. If the file system supports random access, only
+   * the requested ranges are read from the resource.
+   *
+   * @param response the response
+   * @param content  the resource content
+   * @param ranges   the satisfiable ranges
+   * @throws IOException if the content can not be sent
+   */
+  private void sendRanges(HttpServletResponse response, FileContent content, List<ByteRange> ranges) throws IOException {
+    long length = content.getSize();
+    String contentType = content.getContentInfo().getContentType();
 
+    RandomAccessContent randomAccessContent = null;
+    if (content.getFile().getFileSystem().hasCapability(Capability.RANDOM_ACCESS_READ)) {
+      randomAccessContent = content.getRandomAccessContent(RandomAccessMode.READ);
+    }
+
+    try {
+      response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+      if (ranges.size() == 1) {
+        ByteRange range = ranges.get(0);
+        response.setHeader("Content-Range", range.getContentRange(length));
+        response.setHeader("Content-Length", String.valueOf(range.getLength()));
+        sendRange(response.getOutputStream(), content, randomAccessContent, range);
+      } else {
+        response.setHeader("Content-Type", "multipart/byteranges; boundary=" + MULTIPART_BOUNDARY);
+        OutputStream os = response.getOutputStream();
+        for (ByteRange range : ranges) {
+          StringBuffer partHeader = new StringBuffer();
+          partHeader.append("\r\n--").append(MULTIPART_BOUNDARY).append("\r\n");
+          if (null != contentType) {
+            partHeader.append("Content-Type: ").append(contentType).append("\r\n");
+          }
+          partHeader.append("Content-Range: ").append(range.getContentRange(length)).append("\r\n\r\n");
+          os.write(partHeader.toString().getBytes("US-ASCII"));
+          sendRange(os, content, randomAccessContent, range);
+        }
+        os.write(("\r\n--" + MULTIPART_BOUNDARY + "--\r\n").getBytes("US-ASCII"));
+      }
+    } finally {
+      if (null != randomAccessContent) {
+        randomAccessContent.close();
+      }
+    }
+  }
+
+  private void sendRange(OutputStream os, FileContent content, RandomAccessContent randomAccessContent, ByteRange range)
+          throws IOException {
+    if (null != randomAccessContent) {
+      randomAccessContent.seek(range.getStart());
+      byte[] buffer = new byte[16 * 1024];
+      long remaining = range.getLength();
+      while (remaining > 0) {
+        int count = (int) Math.min(buffer.length, remaining);
+        randomAccessContent.readFully(buffer, 0, count);
+        os.write(buffer, 0, count);
+        remaining -= count;
+      }
+    } else {
+      InputStream is = content.getInputStream();
+      try {
+        long position = 0;
+        while (position < range.getStart()) {
+          long skipped = is.skip(range.getStart() - position);
+          if (skipped <= 0) {
+            throw new EOFException(String.format("can't skip to position %d", range.getStart()));
+          }
+          position += skipped;
+        }
+        Util.copyStream(is, os, range.getLength());
+      } finally {
+        is.close();
+      }
+    }
+  }
 }
@@ -95,13 +95,21 @@ public class PropPatchHandler extends WebdavHandler {
           }
         }
 
+        Document multiStatusResponse = getMultiStatusResponse(object, requestedProperties, getBaseUrl(request));
+        try {
+          // write the changed properties in one go
+          object.close();
+        } catch (FileSystemException e) {
+          LOG.error(String.format("can't store properties of '%s'", object.getName().getPath()), e);
+          response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+          return;
+        }
+
         // respond as XML encoded multi status
         response.setContentType("text/xml");
         response.setCharacterEncoding("UTF-8");
         response.setStatus(SC_MULTI_STATUS);
 
-        Document multiStatusResponse = getMultiStatusResponse(object, requestedProperties, getBaseUrl(request));
-
         logXml(multiStatusResponse);
 
         // write the actual response
@@ -70,10 +70,18 @@ public class PutHandler extends WebdavHandler {
       return;
     }
 
+    String contentLengthHeader = request.getHeader("Content-length");
+    if (null != contentLengthHeader) {
+      try {
+        VFSBackend.setRequestContentLength(Long.parseLong(contentLengthHeader.trim()));
+      } catch (NumberFormatException e) {
+        LOG.debug(String.format("ignoring invalid content length '%s'", contentLengthHeader));
+      }
+    }
+
     InputStream is = request.getInputStream();
     OutputStream os = object.getContent().getOutputStream();
     long bytesCopied = Util.copyStream(is, os);
-    String contentLengthHeader = request.getHeader("Content-length");
     LOG.debug(String.format("sent %d/%s bytes", bytesCopied, contentLengthHeader == null ? "unknown" : contentLengthHeader));
     os.flush();
     object.close();
@@ -20,13 +20,10 @@ import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
@@ -36,6 +33,7 @@ import java.util.Locale;
  * @version $Id$
  */
 public class Util {
+  private static final int BUFFER_SIZE = 16 * 1024;
 
   private static final SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
 
@@ -48,25 +46,50 @@ public class Util {
 //  }
 
 
+  /**
+   * Copy one stream to another and close both once the source is exhausted.
+   *
+   * @param is the source stream
+   * @param os the target stream
+   * @return the number of bytes copied
+   * @throws IOException if copying fails
+   */
   public static long copyStream(final InputStream is, final OutputStream os) throws IOException {
-    ReadableByteChannel rbc = Channels.newChannel(is);
-    WritableByteChannel wbc = Channels.newChannel(os);
-
-    int bytesWritten = 0;
-    final ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
-    while (rbc.read(buffer) != -1) {
-      buffer.flip();
-      bytesWritten += wbc.write(buffer);
-      buffer.compact();
-    }
-    buffer.flip();
-    while (buffer.hasRemaining()) {
-      bytesWritten += wbc.write(buffer);
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    long bytesWritten = 0;
+    int count;
+    while ((count = is.read(buffer)) != -1) {
+      os.write(buffer, 0, count);
+      bytesWritten += count;
     }
 
-    rbc.close();
-    wbc.close();
+    is.close();
+    os.close();
+
+    return bytesWritten;
+  }
 
+  /**
+   * Copy a number of bytes from one stream to another. Other than
+   * {@link #copyStream(InputStream, OutputStream)} this leaves both streams open.
+   *
+   * @param is     the source stream
+   * @param os     the target stream
+   * @param length the number of bytes to copy
+   * @return the number of bytes copied
+   * @throws IOException if the source ends early or copying fails
+   */
+  public static long copyStream(final InputStream is, final OutputStream os, final long length) throws IOException {
+    final byte[] buffer = new byte[BUFFER_SIZE];
+    long bytesWritten = 0;
+    while (bytesWritten < length) {
+      int count = is.read(buffer, 0, (int) Math.min(buffer.length, length - bytesWritten));
+      if (count == -1) {
+        throw new EOFException(String.format("premature end of stream after %d of %d bytes", bytesWritten, length));
+      }
+      os.write(buffer, 0, count);
+      bytesWritten += count;
+    }
     return bytesWritten;
   }
 
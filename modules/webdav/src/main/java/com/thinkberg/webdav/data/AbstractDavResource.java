@@ -24,6 +24,7 @@ import org.apache.commons.vfs.FileSystemException;
 import org.dom4j.Element;
 import org.dom4j.Node;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -40,6 +41,7 @@ public abstract class AbstractDavResource {
   public static final String STATUS_404 = "HTTP/1.1 404 Not Found";
   public static final String STATUS_403 = "HTTP/1.1 403 Forbidden";
   public static final String STATUS_422 = "HTTP/1.1 422 Unprocessable Entity";
+  public static final String STATUS_424 = "HTTP/1.1 424 Failed Dependency";
 
   public static final String TAG_ALLPROP = "allprop";
   public static final String TAG_PROPNAMES = "propnames";
@@ -94,12 +96,41 @@ public abstract class AbstractDavResource {
    * properties to be set or removed. These elements must not be detached from their
    * original &lt;set&gt; or &lt;remove&gt; parent tags to be able to determine what
    * should be done with the property.
+   * <p/>
+   * The properties are changed all or none. If one of the properties is protected, none
+   * of them is changed and the others fail with 424 (Failed Dependency). Backends may
+   * collect the changes and write them when the file is closed.
    *
    * @param root                the root of the result document
    * @param requestedProperties the list of properties to work on
    * @return returns the root of the result document
    */
   public Element setPropertyValues(Element root, List<Element> requestedProperties) {
+    List<Element> protectedProperties = new ArrayList<Element>();
+    for (Element propertyEl : requestedProperties) {
+      if (isProtectedProperty(propertyEl)) {
+        protectedProperties.add(propertyEl);
+      }
+    }
+    if (!protectedProperties.isEmpty()) {
+      Element protectedPropEl = root.addElement(TAG_PROPSTAT).addElement(TAG_PROP);
+      Element dependentPropEl = root.addElement(TAG_PROPSTAT).addElement(TAG_PROP);
+      for (Element propertyEl : requestedProperties) {
+        if (protectedProperties.contains(propertyEl)) {
+          protectedPropEl.addElement(propertyEl.getQName());
+        } else {
+          dependentPropEl.addElement(propertyEl.getQName());
+        }
+      }
+      protectedPropEl.getParent().addElement(TAG_STATUS).addText(STATUS_403);
+      if (dependentPropEl.elements().size() > 0) {
+        dependentPropEl.getParent().addElement(TAG_STATUS).addText(STATUS_424);
+      } else {
+        dependentPropEl.getParent().detach();
+      }
+      return root;
+    }
+
     // initialize the <propstat> element for 200
     Element okPropStatEl = root.addElement(TAG_PROPSTAT);
     Element okPropEl = okPropStatEl.addElement(TAG_PROP);
@@ -230,6 +261,16 @@ public abstract class AbstractDavResource {
    */
   protected abstract boolean setPropertyValue(Element root, Element propertyEl);
 
+  /**
+   * Check whether a property is maintained by the server and cannot be set or removed.
+   *
+   * @param propertyEl the property element to check
+   * @return true if the property is protected
+   */
+  protected boolean isProtectedProperty(Element propertyEl) {
+    return ALL_PROPERTIES.contains(propertyEl.getName());
+  }
+
   /**
    * Get the property value and append it to the xml document (root). If this method
    * returns false, the property does not exist.
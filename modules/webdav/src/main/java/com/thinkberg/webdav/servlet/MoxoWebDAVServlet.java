@@ -22,8 +22,10 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.FileSystemOptions;
+import org.apache.commons.vfs.VFS;
 import org.apache.commons.vfs.auth.StaticUserAuthenticator;
 import org.apache.commons.vfs.impl.DefaultFileSystemConfigBuilder;
+import org.apache.commons.vfs.util.DelegatingFileSystemOptionsBuilder;
 
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
@@ -31,6 +33,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -41,6 +44,9 @@ import java.util.Map;
 public class MoxoWebDAVServlet extends HttpServlet {
   private static final Log LOG = LogFactory.getLog(MoxoWebDAVServlet.class);
 
+  private static final String OPTION_PREFIX = "vfs.option.";
+  private static final String CONTENT_SENDER = "webdav.contentSender";
+
   private final Map<String, WebdavHandler> handlers = new HashMap<String, WebdavHandler>();
 
   public MoxoWebDAVServlet() {
@@ -71,11 +77,66 @@ public class MoxoWebDAVServlet extends HttpServlet {
               new StaticUserAuthenticator(authDomain, authUser, authPass);
       FileSystemOptions options = new FileSystemOptions();
       DefaultFileSystemConfigBuilder.getInstance().setUserAuthenticator(options, userAuthenticator);
+      setFileSystemOptions(servletConfig, rootUri, options);
 
       VFSBackend.initialize(rootUri, options);
     } catch (FileSystemException e) {
       LOG.error(String.format("can't create file system backend for '%s'", rootUri));
     }
+    setContentSender(servletConfig.getInitParameter(CONTENT_SENDER));
+  }
+
+  /**
+   * Install the container specific sender for content available as a local file. Without
+   * one, GET copies all content to the response stream.
+   *
+   * @param className the class name of the {@link ContentSender}, may be null
+   */
+  private void setContentSender(String className) {
+    if (null == className) {
+      return;
+    }
+    try {
+      ContentSender sender = (ContentSender) Class.forName(className).newInstance();
+      ((GetHandler) handlers.get("GET")).setContentSender(sender);
+      LOG.info(String.format("content sender %s", className));
+    } catch (Exception e) {
+      LOG.warn(String.format("ignoring content sender %s: %s", className, e.getMessage()));
+    }
+  }
+
+  /**
+   * Set file system options from init parameters named "vfs.option.&lt;name&gt;". The
+   * options are set on the config builder of the file system scheme of the root uri,
+   * so "vfs.option.maxConnections" sets the maxConnections option of an S3 file system.
+   *
+   * @param servletConfig the servlet configuration
+   * @param rootUri       the root uri of the file system
+   * @param options       the options to set
+   * @throws FileSystemException if the file system manager is not available
+   */
+  private void setFileSystemOptions(ServletConfig servletConfig, String rootUri, FileSystemOptions options)
+          throws FileSystemException {
+    int colon = null == rootUri ? -1 : rootUri.indexOf(':');
+    if (colon == -1) {
+      return;
+    }
+    String scheme = rootUri.substring(0, colon);
+    DelegatingFileSystemOptionsBuilder builder = new DelegatingFileSystemOptionsBuilder(VFS.getManager());
+    Enumeration names = servletConfig.getInitParameterNames();
+    while (names.hasMoreElements()) {
+      String name = (String) names.nextElement();
+      if (name.startsWith(OPTION_PREFIX)) {
+        String option = name.substring(OPTION_PREFIX.length());
+        String value = servletConfig.getInitParameter(name);
+        try {
+          builder.setConfigString(options, scheme, option, value);
+          LOG.info(String.format("file system option %s=%s", option, value));
+        } catch (FileSystemException e) {
+          LOG.warn(String.format("ignoring file system option %s=%s: %s", option, value, e.getMessage()));
+        }
+      }
+    }
   }
 
   public void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -108,7 +169,12 @@ public class MoxoWebDAVServlet extends HttpServlet {
     String method = request.getMethod();
     LOG.debug(String.format(">> %s %s", request.getMethod(), request.getPathInfo()));
     if (handlers.containsKey(method)) {
-      handlers.get(method).service(request, response);
+      VFSBackend.beginRequest(method);
+      try {
+        handlers.get(method).service(request, response);
+      } finally {
+        VFSBackend.endRequest();
+      }
     } else {
       response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
     }
@@ -16,16 +16,37 @@
 
 package com.thinkberg.webdav.vfs;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.commons.vfs.FileObject;
 import org.apache.commons.vfs.FileSystemException;
 import org.apache.commons.vfs.FileSystemOptions;
 import org.apache.commons.vfs.VFS;
 
+import java.nio.channels.FileChannel;
+
 /**
  * @author Matthias L. Jugel
  * @version $Id$
  */
 public class VFSBackend {
+  private static final Log LOG = LogFactory.getLog(VFSBackend.class);
+
+  /**
+   * File system attribute used to tell the backend which request the current thread
+   * handles. File systems that do not support it are not notified.
+   */
+  public static final String REQUEST_ATTRIBUTE = "request";
+  /**
+   * File system attribute announcing the length of the request body of the current thread.
+   */
+  public static final String REQUEST_CONTENT_LENGTH_ATTRIBUTE = "request.contentLength";
+  /**
+   * File system attribute returning the channel of the local file the content opened last
+   * by the current thread is read from.
+   */
+  public static final String REQUEST_CONTENT_CHANNEL_ATTRIBUTE = "request.contentChannel";
+
   private static VFSBackend instance;
 
   private final FileObject fileSystemRoot;
@@ -46,4 +67,58 @@ public class VFSBackend {
     }
     return instance.fileSystemRoot.resolveFile(path);
   }
+
+  /**
+   * Notify the file system that the current thread starts working on a request.
+   *
+   * @param method the request method
+   */
+  public static void beginRequest(String method) {
+    setRequestAttribute(REQUEST_ATTRIBUTE, method);
+  }
+
+  /**
+   * Tell the file system the length of the request body the current thread is about
+   * to write. File systems may use it to send the content on while it arrives.
+   *
+   * @param length the content length
+   */
+  public static void setRequestContentLength(long length) {
+    setRequestAttribute(REQUEST_CONTENT_LENGTH_ATTRIBUTE, length);
+  }
+
+  /**
+   * Notify the file system that the current thread finished its request.
+   */
+  public static void endRequest() {
+    setRequestAttribute(REQUEST_ATTRIBUTE, null);
+  }
+
+  /**
+   * Get the local file channel of the content the current thread opened last. Content
+   * that is available as a local file can be sent without copying it through the heap.
+   *
+   * @param object the file whose content has just been opened
+   * @return the channel or null if the content is not read from a local file
+   */
+  public static FileChannel getRequestContentChannel(FileObject object) {
+    try {
+      Object channel = object.getFileSystem().getAttribute(REQUEST_CONTENT_CHANNEL_ATTRIBUTE);
+      return channel instanceof FileChannel ? (FileChannel) channel : null;
+    } catch (FileSystemException e) {
+      // the file system does not tell where its content comes from
+      return null;
+    }
+  }
+
+  private static void setRequestAttribute(String name, Object value) {
+    if (null != instance) {
+      try {
+        instance.fileSystemRoot.getFileSystem().setAttribute(name, value);
+      } catch (FileSystemException e) {
+        // the file system does not track requests
+        LOG.trace(String.format("request attribute not supported: %s", e.getMessage()));
+      }
+    }
+  }
 }
@@ -0,0 +1,53 @@
+package com.thinkberg.webdav.tests;
+
+import com.thinkberg.webdav.ByteRange;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Matthias L. Jugel
+ */
+public class ByteRangeTest extends TestCase {
+
+  public void testSimpleRange() {
+    assertEquals(Arrays.asList(new ByteRange(0, 499)), ByteRange.parse("bytes=0-499", 1000));
+  }
+
+  public void testOpenRange() {
+    assertEquals(Arrays.asList(new ByteRange(500, 999)), ByteRange.parse("bytes=500-", 1000));
+  }
+
+  public void testSuffixRange() {
+    assertEquals(Arrays.asList(new ByteRange(900, 999)), ByteRange.parse("bytes=-100", 1000));
+    assertEquals(Arrays.asList(new ByteRange(0, 999)), ByteRange.parse("bytes=-5000", 1000));
+  }
+
+  public void testRangeIsShortenedToContent() {
+    assertEquals(Arrays.asList(new ByteRange(900, 999)), ByteRange.parse("bytes=900-5000", 1000));
+  }
+
+  public void testMultipleRanges() {
+    List<ByteRange> ranges = ByteRange.parse("bytes=0-0, 10-19,-1", 1000);
+    assertEquals(Arrays.asList(new ByteRange(0, 0), new ByteRange(10, 19), new ByteRange(999, 999)), ranges);
+  }
+
+  public void testUnsatisfiableRange() {
+    assertTrue(ByteRange.parse("bytes=1000-", 1000).isEmpty());
+    assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+    assertTrue(ByteRange.parse("bytes=0-10", 0).isEmpty());
+  }
+
+  public void testInvalidRangeIsIgnored() {
+    assertNull(ByteRange.parse("items=0-10", 1000));
+    assertNull(ByteRange.parse("bytes=10-0", 1000));
+    assertNull(ByteRange.parse("bytes=a-b", 1000));
+    assertNull(ByteRange.parse("bytes=10", 1000));
+  }
+
+  public void testContentRange() {
+    assertEquals("bytes 10-19/1000", new ByteRange(10, 19).getContentRange(1000));
+    assertEquals(10, new ByteRange(10, 19).getLength());
+  }
+}
@@ -3,10 +3,14 @@ package com.thinkberg.webdav.tests;
 import com.thinkberg.webdav.DavTestCase;
 import com.thinkberg.webdav.data.DavCollection;
 import com.thinkberg.webdav.data.DavResource;
+import com.thinkberg.webdav.data.DavResourceFactory;
 import org.apache.commons.vfs.FileSystemException;
+import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Test case for the DAV resource wrapper. Checks that resources are serialized
@@ -48,4 +52,19 @@ public class DavResourceTest extends DavTestCase {
     Element root = serializeDavResource(aDirectory, DavResource.PROP_RESOURCETYPE);
     assertNotNull(selectExistingProperty(root, DavResource.PROP_RESOURCETYPE).selectSingleNode(DavCollection.COLLECTION));
   }
+
+  public void testSetProtectedPropertyFailsAll() throws FileSystemException {
+    Element propEl = DocumentHelper.createElement("propertyupdate")
+            .addElement(DavResource.TAG_PROP_SET).addElement(DavResource.TAG_PROP);
+    List<Element> requestedProperties = new ArrayList<Element>();
+    requestedProperties.add(propEl.addElement(DavResource.PROP_GET_CONTENT_LENGTH));
+    requestedProperties.add(propEl.addElement("author"));
+
+    Element root = DocumentHelper.createElement("root");
+    DavResourceFactory.getInstance().getDavResource(aFile).setPropertyValues(root, requestedProperties);
+    assertNotNull(root.selectSingleNode("propstat[status='" + DavResource.STATUS_403 + "']/prop/" +
+                                        DavResource.PROP_GET_CONTENT_LENGTH));
+    assertNotNull(root.selectSingleNode("propstat[status='" + DavResource.STATUS_424 + "']/prop/author"));
+    assertNull(root.selectSingleNode("propstat[status='" + DavResource.STATUS_200 + "']"));
+  }
 }